@@ -1,7 +1,50 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /*
  * Code for representing state of the chessboard and chess piece moves
@@ -14,11 +57,9 @@ import java.util.Scanner;
  * So the command line arguments "0 5" means player 1 will be a human player and
  * player 2 will be a computer player that checks 5 moves ahead before determining
  * the best move to take next.
- * Making both numbers the same may result in a never ending game as both
- * computer players will sometimes repeat moves over and over so that neither player loses.
- * The never ending game issue may occassional happen even when the numbers are different.
- * This happens because this program does not account for all of the formal rules of chess 
- * which lets the computer players prolong the game with moves not normally allowed.
+ * A game is drawn when a position comes up for the third time with the same
+ * player to move, or after 100 plies without a capture or a pawn move, so two
+ * computer players that can't beat each other don't play forever.
  * If both players are computer players, the computer that checks the most moves ahead should
  * usually win.
  */
@@ -26,6 +67,9 @@ import java.util.Scanner;
 class ChessState
 {
     public static final int MAX_PIECE_MOVES = 27;
+    public static final int MAX_MOVES = 256;
+    public static final int MAX_PLY = 64;
+    static final int INITIAL_HISTORY = 256; // game positions the history holds before it has to grow
     public static final int None = 0;
     public static final int Pawn = 1;
     public static final int Rook = 2;
@@ -36,21 +80,182 @@ class ChessState
     public static final int PieceMask = 7;
     public static final int WhiteMask = 8;
     public static final int AllMask = 15;
-    public static ChessState.ChessMove moveToMake;
+    
+    /// FEN letter of each piece, indexed by piece; white pieces are upper case
+    static final String FEN_LETTERS = " prnbqk";
+    
+    /// The starting position in Forsyth-Edwards Notation
+    static final String START_FEN = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w - - 0 1";
+    
+    /// Packed move layout: bits 0-5 source square, bits 6-11 destination square,
+    /// bits 12-14 moving piece, bits 15-17 captured piece, bit 18 promotion.
+    /// A legal packed move is never 0 because the moving piece is never None.
+    public static final int NO_MOVE = 0;
+    public static final int PROMOTION_FLAG = 1 << 18;
+    
+    /// Material value of each piece type, indexed by piece
+    static final int[] PIECE_VALUES = { 0, 10, 63, 31, 36, 88, 500, 0 };
+    
+    /// Piece-square bonuses from white's point of view (row 0 is white's back
+    /// row), indexed by piece and square. Black uses the mirrored square.
+    static final int[][] PIECE_SQUARE = new int[8][64];
+    
+    /// Material plus piece-square value of each piece nibble on each square,
+    /// positive for white pieces and negative for black ones.
+    static final int[][] MATERIAL_SCORE = new int[16][64];
+    static final int[][] POSITIONAL_SCORE = new int[16][64];
+    
+    /// The sum of the two, flattened to [nibble << 6 | square] for batch evaluation.
+    /// The color is in the sign, so a lookup needs no branch.
+    static final int[] SQUARE_SCORES = new int[16 * 64];
+    
+    /// Pawn structure terms, in the same units as PIECE_VALUES
+    static final int DOUBLED_PAWN_PENALTY = 3;  // for each pawn behind another of its color on its column
+    static final int ISOLATED_PAWN_PENALTY = 2; // for each pawn with no pawns of its color on the columns beside it
+    static final int[] PASSED_PAWN_BONUS = { 0, 1, 2, 3, 5, 8, 12, 0 }; // by row from its own side; on row 6 it queens next move
+    
+    static
+    {
+        for(int sq = 0; sq < 64; sq++)
+        {
+            int col = sq & 7;
+            int row = sq >> 3;
+            int centre = 3 - Math.max(Math.abs(2 * col - 7), Math.abs(2 * row - 7)) / 2; // 0 on the edge, 3 in the middle
+            PIECE_SQUARE[Pawn][sq] = (row >= 1 && row <= 6) ? (row - 1) + ((col == 3 || col == 4) && row >= 2 ? 1 : 0) : 0;
+            PIECE_SQUARE[Knight][sq] = 2 * centre - 3;
+            PIECE_SQUARE[Bishop][sq] = centre - 1;
+            PIECE_SQUARE[Rook][sq] = (row == 6) ? 2 : 0;
+            PIECE_SQUARE[Queen][sq] = centre - 1;
+            PIECE_SQUARE[King][sq] = (row == 0) ? 2 : -2 * Math.min(row, 3);
+        }
+        for(int p = Pawn; p <= King; p++)
+        {
+            for(int sq = 0; sq < 64; sq++)
+            {
+                MATERIAL_SCORE[p | WhiteMask][sq] = PIECE_VALUES[p];
+                MATERIAL_SCORE[p][sq] = -PIECE_VALUES[p];
+                POSITIONAL_SCORE[p | WhiteMask][sq] = PIECE_SQUARE[p][sq];
+                POSITIONAL_SCORE[p][sq] = -PIECE_SQUARE[p][sq ^ 56];
+            }
+        }
+        for(int nibble = 0; nibble < 16; nibble++)
+        {
+            for(int sq = 0; sq < 64; sq++)
+                SQUARE_SCORES[nibble << 6 | sq] = MATERIAL_SCORE[nibble][sq] + POSITIONAL_SCORE[nibble][sq];
+        }
+    }
+    
+    /// Attack tables, indexed by square (square = row * 8 + col, so A1 is 0 and H8 is 63)
+    static final long[] KNIGHT_ATTACKS = new long[64];
+    static final long[] KING_ATTACKS = new long[64];
+    static final long[][] PAWN_ATTACKS = new long[2][64]; // [0] black, [1] white
+    
+    /// For a pawn of each color on each square, the squares ahead of it on its
+    /// column and the ones beside it, where an enemy pawn could stop it ([0] black, [1] white)
+    static final long[][] PASSED_PAWN_MASKS = new long[2][64];
+    
+    /// Sliding piece rays in the order N, NE, E, SE, S, SW, W, NW. A ray does not
+    /// include its origin square. N, NE, E and NW point toward higher squares.
+    static final long[][] RAYS = new long[8][64];
+    static final int[] RAY_COL_STEP = { 0, 1, 1, 1, 0, -1, -1, -1 };
+    static final int[] RAY_ROW_STEP = { 1, 1, 0, -1, -1, -1, 0, 1 };
+    
+    /// Zobrist keys, indexed by piece nibble and square. The seed is fixed so
+    /// that hash keys are the same from one run to the next.
+    static final long[][] ZOBRIST = new long[16][64];
+    static final long ZOBRIST_BLACK_TO_MOVE;
+    
+    static
+    {
+        Random zobristRand = new Random(0x5eed_c4e55L);
+        for(int p = Pawn; p <= King; p++)
+        {
+            for(int sq = 0; sq < 64; sq++)
+            {
+                ZOBRIST[p][sq] = zobristRand.nextLong();
+                ZOBRIST[p | WhiteMask][sq] = zobristRand.nextLong();
+            }
+        }
+        ZOBRIST_BLACK_TO_MOVE = zobristRand.nextLong();
+    }
+    
+    static
+    {
+        int[] knightCols = { 2, 1, -1, -2, -2, -1, 1, 2 };
+        int[] knightRows = { 1, 2, 2, 1, -1, -2, -2, -1 };
+        for(int sq = 0; sq < 64; sq++)
+        {
+            int col = sq & 7;
+            int row = sq >> 3;
+            for(int d = 0; d < 8; d++)
+            {
+                KNIGHT_ATTACKS[sq] |= squareBit(col + knightCols[d], row + knightRows[d]);
+                KING_ATTACKS[sq] |= squareBit(col + RAY_COL_STEP[d], row + RAY_ROW_STEP[d]);
+                for(int i = col + RAY_COL_STEP[d], j = row + RAY_ROW_STEP[d]; squareBit(i, j) != 0; i += RAY_COL_STEP[d], j += RAY_ROW_STEP[d])
+                    RAYS[d][sq] |= squareBit(i, j);
+            }
+            PAWN_ATTACKS[1][sq] = squareBit(col - 1, row + 1) | squareBit(col + 1, row + 1);
+            PAWN_ATTACKS[0][sq] = squareBit(col - 1, row - 1) | squareBit(col + 1, row - 1);
+            for(int c = col - 1; c <= col + 1; c++)
+            {
+                for(int r = row + 1; r < 8; r++)
+                    PASSED_PAWN_MASKS[1][sq] |= squareBit(c, r);
+                for(int r = row - 1; r >= 0; r--)
+                    PASSED_PAWN_MASKS[0][sq] |= squareBit(c, r);
+            }
+        }
+    }
     
     int[] m_rows;
+    long[] m_pieces; // one bitboard per piece nibble (piece | WhiteMask)
+    long[] m_colors; // occupancy by color, [0] black, [1] white
+    long m_hash; // Zobrist key of the pieces on the board
+    long m_pawnHash; // Zobrist key of the pawns alone, for the pawn table
+    int m_material; // material balance, positive when white is ahead
+    int m_positional; // piece-square balance, positive when white is ahead
+    
+    // m_hash of every earlier position in the game and on the search path,
+    // oldest first, for spotting repetitions
+    long[] m_historyKeys;
+    int m_historyLength;
+    int m_reversiblePlies; // plies since the last capture or pawn move
+    int m_repetitionPlies; // the same, but a null move counts as irreversible too: how far back a repetition can be
+    int m_startPly; // plies played before the first position in the history, for the FEN move number
     
     ChessState()
     {
         m_rows = new int[8];
+        m_pieces = new long[16];
+        m_colors = new long[2];
+        m_historyKeys = new long[INITIAL_HISTORY];
         resetBoard();
     }
     
     ChessState(ChessState that)
+    {
+        m_rows = that.m_rows.clone();
+        m_pieces = that.m_pieces.clone();
+        m_colors = that.m_colors.clone();
+        m_hash = that.m_hash;
+        m_pawnHash = that.m_pawnHash;
+        m_material = that.m_material;
+        m_positional = that.m_positional;
+        m_historyKeys = Arrays.copyOf(that.m_historyKeys, Math.max(INITIAL_HISTORY, that.m_historyLength + MAX_PLY));
+        m_historyLength = that.m_historyLength;
+        m_reversiblePlies = that.m_reversiblePlies;
+        m_repetitionPlies = that.m_repetitionPlies;
+        m_startPly = that.m_startPly;
+    }
+    
+    /// Builds a state from 8 rows in the m_rows encoding
+    ChessState(int[] rows)
     {
         m_rows = new int[8];
-        for(int i = 0; i < 8; i++)
-            this.m_rows[i] = that.m_rows[i];
+        m_pieces = new long[16];
+        m_colors = new long[2];
+        m_historyKeys = new long[INITIAL_HISTORY];
+        for(int sq = 0; sq < 64; sq++)
+            setSquare(sq, (rows[sq >> 3] >> (4 * (sq & 7))) & AllMask);
     }
     
     int getPiece(int col, int row)
@@ -67,13 +272,128 @@ class ChessState
     /// matter what the value of white is.
     void setPiece(int col, int row, int piece, boolean white)
     {
-        m_rows[row] &= (~(AllMask << (4 * col)));
-        m_rows[row] |= ((piece | (white ? WhiteMask : 0)) << (4 * col));
+        setSquare(row * 8 + col, piece | (white ? WhiteMask : 0));
+    }
+    
+    /// Returns the piece nibble (piece | WhiteMask) on a square, or None
+    int getSquare(int sq)
+    {
+        return (m_rows[sq >> 3] >> (4 * (sq & 7))) & AllMask;
+    }
+    
+    /// Puts a piece nibble on a square and keeps the bitboards in sync with m_rows.
+    /// Every change to the board goes through here.
+    void setSquare(int sq, int nibble)
+    {
+        int shift = 4 * (sq & 7);
+        int old = (m_rows[sq >> 3] >> shift) & AllMask;
+        long bit = 1L << sq;
+        if((old & PieceMask) != None)
+        {
+            m_pieces[old] ^= bit;
+            m_colors[old >> 3] ^= bit;
+            m_hash ^= ZOBRIST[old][sq];
+            if((old & PieceMask) == Pawn)
+                m_pawnHash ^= ZOBRIST[old][sq];
+            m_material -= MATERIAL_SCORE[old][sq];
+            m_positional -= POSITIONAL_SCORE[old][sq];
+        }
+        if((nibble & PieceMask) == None)
+            nibble = None;
+        m_rows[sq >> 3] = (m_rows[sq >> 3] & ~(AllMask << shift)) | (nibble << shift);
+        if(nibble != None)
+        {
+            m_pieces[nibble] |= bit;
+            m_colors[nibble >> 3] |= bit;
+            m_hash ^= ZOBRIST[nibble][sq];
+            if((nibble & PieceMask) == Pawn)
+                m_pawnHash ^= ZOBRIST[nibble][sq];
+            m_material += MATERIAL_SCORE[nibble][sq];
+            m_positional += POSITIONAL_SCORE[nibble][sq];
+        }
+    }
+    
+    /// Returns the Zobrist key of this position with the specified side to move
+    long hashKey(boolean whiteToMove)
+    {
+        return whiteToMove ? m_hash : m_hash ^ ZOBRIST_BLACK_TO_MOVE;
+    }
+    
+    static long squareBit(int col, int row)
+    {
+        if(col < 0 || col >= 8 || row < 0 || row >= 8)
+            return 0;
+        return 1L << (row * 8 + col);
+    }
+    
+    /// Returns the squares a slider on sq reaches along one ray, stopping at
+    /// (and including) the first occupied square.
+    static long rayAttacks(int dir, int sq, long occupied)
+    {
+        long attacks = RAYS[dir][sq];
+        long blockers = attacks & occupied;
+        if(blockers != 0)
+        {
+            int first = (dir <= 2 || dir == 7) ? Long.numberOfTrailingZeros(blockers) : 63 - Long.numberOfLeadingZeros(blockers);
+            attacks ^= RAYS[dir][first];
+        }
+        return attacks;
+    }
+    
+    static long rookAttacks(int sq, long occupied)
+    {
+        return rayAttacks(0, sq, occupied) | rayAttacks(2, sq, occupied) | rayAttacks(4, sq, occupied) | rayAttacks(6, sq, occupied);
+    }
+    
+    static long bishopAttacks(int sq, long occupied)
+    {
+        return rayAttacks(1, sq, occupied) | rayAttacks(3, sq, occupied) | rayAttacks(5, sq, occupied) | rayAttacks(7, sq, occupied);
+    }
+    
+    /// Returns a bitboard of the squares the piece on sq can move to
+    long targets(int sq)
+    {
+        int nibble = getSquare(sq);
+        int white = nibble >> 3;
+        long own = m_colors[white];
+        long enemy = m_colors[white ^ 1];
+        long occupied = own | enemy;
+        switch(nibble & PieceMask)
+        {
+            case Pawn:
+            {
+                long bit = 1L << sq;
+                long push;
+                if(white == 1)
+                {
+                    push = (bit << 8) & ~occupied;
+                    if(push != 0 && (sq >> 3) == 1)
+                        push |= (bit << 16) & ~occupied;
+                }
+                else
+                {
+                    push = (bit >>> 8) & ~occupied;
+                    if(push != 0 && (sq >> 3) == 6)
+                        push |= (bit >>> 16) & ~occupied;
+                }
+                return push | (PAWN_ATTACKS[white][sq] & enemy);
+            }
+            case Rook: return rookAttacks(sq, occupied) & ~own;
+            case Knight: return KNIGHT_ATTACKS[sq] & ~own;
+            case Bishop: return bishopAttacks(sq, occupied) & ~own;
+            case Queen: return (rookAttacks(sq, occupied) | bishopAttacks(sq, occupied)) & ~own;
+            case King: return KING_ATTACKS[sq] & ~own;
+            default: return 0;
+        }
     }
     
     /// Sets up the board for a new game
     void resetBoard()
     {
+        m_historyLength = 0;
+        m_reversiblePlies = 0;
+        m_repetitionPlies = 0;
+        m_startPly = 0;
         setPiece(0, 0, Rook, true);
         setPiece(1, 0, Knight, true);
         setPiece(2, 0, Bishop, true);
@@ -104,31 +424,45 @@ class ChessState
     /// Positive means white is favored. Negative means black is favored.
     int heuristic(Random rand)
     {
-        int score = 0;
-        for(int y = 0; y < 8; y++)
+        return evaluate() + rand.nextInt(3) - 1;
+    }
+    
+    /// Material plus piece-square score, kept up to date by setSquare, plus
+    /// the pawn structure. Positive means white is favored.
+    int evaluate()
+    {
+        return m_material + m_positional + pawnStructure();
+    }
+    
+    /// Pawn structure score, positive when white is favored. It only depends on
+    /// where the pawns are, so the search looks it up in a PawnTable by m_pawnHash.
+    int pawnStructure()
+    {
+        return pawnStructure(true) - pawnStructure(false);
+    }
+    
+    /// Doubled and isolated pawn penalties and passed pawn bonuses for one color
+    int pawnStructure(boolean white)
+    {
+        long own = m_pieces[white ? Pawn | WhiteMask : Pawn];
+        long enemy = m_pieces[white ? Pawn : Pawn | WhiteMask];
+        
+        //fold the rows together to get one bit per column with a pawn on it
+        long fold = own | (own >>> 32);
+        fold |= fold >>> 16;
+        fold |= fold >>> 8;
+        int files = (int)fold & 0xff;
+        int isolatedFiles = files & ~((files << 1) | (files >>> 1));
+        long isolated = own & (isolatedFiles * 0x0101010101010101L); // every row of those columns
+        int score = -DOUBLED_PAWN_PENALTY * (Long.bitCount(own) - Integer.bitCount(files))
+                    - ISOLATED_PAWN_PENALTY * Long.bitCount(isolated);
+        for(long b = own; b != 0; b &= b - 1)
         {
-            for(int x = 0; x < 8; x++)
-            {
-                int p = getPiece(x, y);
-                int value;
-                switch(p)
-                {
-                    case None: value = 0; break;
-                    case Pawn: value = 10; break;
-                    case Rook: value = 63; break;
-                    case Knight: value = 31; break;
-                    case Bishop: value = 36; break;
-                    case Queen: value = 88; break;
-                    case King: value = 500; break;
-                    default: throw new RuntimeException("what?");
-                }
-                if(isWhite(x, y))
-                    score += value;
-                else
-                    score -= value;
-            }
+            int sq = Long.numberOfTrailingZeros(b);
+            if((enemy & PASSED_PAWN_MASKS[white ? 1 : 0][sq]) == 0)
+                score += PASSED_PAWN_BONUS[white ? sq >> 3 : 7 - (sq >> 3)];
         }
-        return score + rand.nextInt(3) - 1;
+        return score;
     }
     
     /// Returns an iterator that iterates over all possible moves for the specified color
@@ -140,10 +474,11 @@ class ChessState
     /// Returns true iff the parameters represent a valid move
     boolean isValidMove(int xSrc, int ySrc, int xDest, int yDest)
     {
-        ArrayList<Integer> possible_moves = moves(xSrc, ySrc);
-        for(int i = 0; i < possible_moves.size(); i += 2)
+        int[] moves = new int[MAX_MOVES];
+        int count = generateMoves(isWhite(xSrc, ySrc), moves);
+        for(int i = 0; i < count; i++)
         {
-            if(possible_moves.get(i).intValue() == xDest && possible_moves.get(i + 1).intValue() == yDest)
+            if(moveFrom(moves[i]) == ySrc * 8 + xSrc && moveTo(moves[i]) == yDest * 8 + xDest)
                 return true;
         }
         return false;
@@ -198,106 +533,405 @@ class ChessState
     ArrayList<Integer> moves(int col, int row)
     {
         ArrayList<Integer> pOutMoves = new ArrayList<Integer>();
-        int p = getPiece(col, row);
-        boolean bWhite = isWhite(col, row);
-        int nMoves = 0;
-        int i, j;
-        switch(p)
+        for(long t = targets(row * 8 + col); t != 0; t &= t - 1)
         {
-            case Pawn:
-                if(bWhite)
+            int sq = Long.numberOfTrailingZeros(t);
+            pOutMoves.add(sq & 7);
+            pOutMoves.add(sq >> 3);
+        }
+        return pOutMoves;
+    }
+    
+    /// Writes only the captures and promotions for the specified color into
+    /// moves as packed ints and returns how many were written
+    int generateCaptures(boolean white, int[] moves)
+    {
+        int count = 0;
+        long enemy = m_colors[white ? 0 : 1];
+        long promotionRow = white ? (0xffL << 56) : 0xffL;
+        for(long b = m_colors[white ? 1 : 0]; b != 0; b &= b - 1)
+        {
+            int from = Long.numberOfTrailingZeros(b);
+            int piece = getSquare(from) & PieceMask;
+            long t = targets(from) & (piece == Pawn ? (enemy | promotionRow) : enemy);
+            for(; t != 0; t &= t - 1)
+            {
+                int to = Long.numberOfTrailingZeros(t);
+                boolean promotion = (piece == Pawn && ((to >> 3) == 0 || (to >> 3) == 7));
+                moves[count++] = packMove(from, to, piece, getSquare(to) & PieceMask, promotion);
+            }
+        }
+        return count;
+    }
+    
+    /// Returns every piece of either color that attacks sq, given the occupied squares
+    long attackersTo(int sq, long occupied)
+    {
+        long rooks = m_pieces[Rook] | m_pieces[Rook | WhiteMask] | m_pieces[Queen] | m_pieces[Queen | WhiteMask];
+        long bishops = m_pieces[Bishop] | m_pieces[Bishop | WhiteMask] | m_pieces[Queen] | m_pieces[Queen | WhiteMask];
+        return ((PAWN_ATTACKS[0][sq] & m_pieces[Pawn | WhiteMask])
+              | (PAWN_ATTACKS[1][sq] & m_pieces[Pawn])
+              | (KNIGHT_ATTACKS[sq] & (m_pieces[Knight] | m_pieces[Knight | WhiteMask]))
+              | (KING_ATTACKS[sq] & (m_pieces[King] | m_pieces[King | WhiteMask]))
+              | (rookAttacks(sq, occupied) & rooks)
+              | (bishopAttacks(sq, occupied) & bishops)) & occupied;
+    }
+    
+    /// Returns true iff the specified color's king can be taken by the other side
+    boolean kingAttacked(boolean white)
+    {
+        long king = m_pieces[King | (white ? WhiteMask : 0)];
+        if(king == 0)
+            return false;
+        long occupied = m_colors[0] | m_colors[1];
+        return (attackersTo(Long.numberOfTrailingZeros(king), occupied) & m_colors[white ? 0 : 1]) != 0;
+    }
+    
+    /// Returns the value of the specified color's knights, bishops, rooks and queens
+    int nonPawnMaterial(boolean white)
+    {
+        int color = white ? WhiteMask : 0;
+        int total = 0;
+        for(int p = Rook; p <= Queen; p++)
+            total += Long.bitCount(m_pieces[p | color]) * PIECE_VALUES[p];
+        return total;
+    }
+    
+    /*
+     * Static exchange evaluation: returns true iff the side making this move
+     * comes out at least threshold ahead when both sides keep recapturing on
+     * the destination square with their least valuable piece, each side free to
+     * stop when going on would lose. Pieces lined up behind others join in as
+     * the pieces in front of them are used up. Nothing is allocated.
+     */
+    boolean seeAtLeast(int move, int threshold)
+    {
+        int from = moveFrom(move);
+        int to = moveTo(move);
+        int promotionGain = isPromotion(move) ? PIECE_VALUES[Queen] - PIECE_VALUES[Pawn] : 0;
+        int swap = PIECE_VALUES[moveCaptured(move)] + promotionGain - threshold;
+        if(swap < 0)
+            return false;
+        swap = (isPromotion(move) ? PIECE_VALUES[Queen] : PIECE_VALUES[movePiece(move)]) - swap;
+        if(swap <= 0)
+            return true;
+        long occupied = (m_colors[0] | m_colors[1]) ^ (1L << from) ^ (1L << to);
+        boolean white = (getSquare(from) & WhiteMask) != 0;
+        long attackers = attackersTo(to, occupied);
+        int result = 1;
+        while(true)
+        {
+            white = !white;
+            attackers &= occupied;
+            long mine = attackers & m_colors[white ? 1 : 0];
+            if(mine == 0)
+                break;
+            result ^= 1;
+            //recapture with the least valuable attacker
+            int piece = Pawn;
+            long b = 0;
+            for(; piece <= King; piece = nextByValue(piece))
+            {
+                b = mine & m_pieces[piece | (white ? WhiteMask : 0)];
+                if(b != 0)
+                    break;
+            }
+            swap = PIECE_VALUES[piece] - swap;
+            if(swap < result)
+                break;
+            occupied ^= b & -b;
+            attackers = attackersTo(to, occupied);
+        }
+        return result != 0;
+    }
+    
+    /// Steps through the piece types from least to most valuable:
+    /// pawn, knight, bishop, rook, queen, king
+    static int nextByValue(int piece)
+    {
+        switch(piece)
+        {
+            case Pawn: return Knight;
+            case Knight: return Bishop;
+            case Bishop: return Rook;
+            case Rook: return Queen;
+            case Queen: return King;
+            default: return King + 1;
+        }
+    }
+    
+    /// Writes every possible move for the specified color into moves as packed
+    /// ints and returns how many were written. Nothing is allocated, so the
+    /// search can reuse one buffer per ply.
+    int generateMoves(boolean white, int[] moves)
+    {
+        int count = 0;
+        for(long b = m_colors[white ? 1 : 0]; b != 0; b &= b - 1)
+        {
+            int from = Long.numberOfTrailingZeros(b);
+            int piece = getSquare(from) & PieceMask;
+            for(long t = targets(from); t != 0; t &= t - 1)
+            {
+                int to = Long.numberOfTrailingZeros(t);
+                boolean promotion = (piece == Pawn && ((to >> 3) == 0 || (to >> 3) == 7));
+                moves[count++] = packMove(from, to, piece, getSquare(to) & PieceMask, promotion);
+            }
+        }
+        return count;
+    }
+    
+    static int packMove(int from, int to, int piece, int captured, boolean promotion)
+    {
+        return from | (to << 6) | (piece << 12) | (captured << 15) | (promotion ? PROMOTION_FLAG : 0);
+    }
+    
+    static int moveFrom(int move)
+    {
+        return move & 63;
+    }
+    
+    static int moveTo(int move)
+    {
+        return (move >> 6) & 63;
+    }
+    
+    static int movePiece(int move)
+    {
+        return (move >> 12) & PieceMask;
+    }
+    
+    static int moveCaptured(int move)
+    {
+        return (move >> 15) & PieceMask;
+    }
+    
+    static boolean isPromotion(int move)
+    {
+        return (move & PROMOTION_FLAG) != 0;
+    }
+    
+    /// Converts a packed move into a ChessMove
+    static ChessState.ChessMove toChessMove(int move)
+    {
+        ChessState.ChessMove m = new ChessState.ChessMove();
+        m.xSource = moveFrom(move) & 7;
+        m.ySource = moveFrom(move) >> 3;
+        m.xDest = moveTo(move) & 7;
+        m.yDest = moveTo(move) >> 3;
+        return m;
+    }
+    
+    /// Returns a move in coordinate notation, such as "e2e4" or "e7e8q" for a promotion
+    static String moveToString(int move)
+    {
+        if(move == NO_MOVE)
+            return "0000";
+        StringBuilder sb = new StringBuilder(5);
+        sb.append((char)('a' + (moveFrom(move) & 7))).append((char)('1' + (moveFrom(move) >> 3)));
+        sb.append((char)('a' + (moveTo(move) & 7))).append((char)('1' + (moveTo(move) >> 3)));
+        if(isPromotion(move))
+            sb.append('q');
+        return sb.toString();
+    }
+    
+    /// Finds the move written in coordinate notation (such as "b1c3") among the
+    /// moves for the specified color. Returns NO_MOVE if it isn't one of them.
+    int parseMove(String text, boolean white)
+    {
+        if(text.length() < 4)
+            return NO_MOVE;
+        int srcCol = columnLetterToNumber(text.charAt(0));
+        int srcRow = text.charAt(1) - '1';
+        int destCol = columnLetterToNumber(text.charAt(2));
+        int destRow = text.charAt(3) - '1';
+        if(srcCol < 0 || destCol < 0 || srcRow < 0 || srcRow >= 8 || destRow < 0 || destRow >= 8)
+            return NO_MOVE;
+        int[] moves = new int[MAX_MOVES];
+        int count = generateMoves(white, moves);
+        for(int i = 0; i < count; i++)
+        {
+            if(moveFrom(moves[i]) == srcRow * 8 + srcCol && moveTo(moves[i]) == destRow * 8 + destCol)
+                return moves[i];
+        }
+        return NO_MOVE;
+    }
+    
+    /*
+     * Finds the move written in standard algebraic notation (such as "Nf3",
+     * "exd5" or "e8=Q") among the moves for the specified color. Returns NO_MOVE
+     * if it isn't one of them or can't be played under this program's rules
+     * (castling, en passant and promotion to anything but a queen). Because this
+     * program lets a player leave its king under attack, a move that standard
+     * chess left unambiguous may match two moves here; the one that doesn't
+     * leave the king under attack is the one that was meant.
+     */
+    int parseSan(String text, boolean white)
+    {
+        String san = text.replaceAll("[+#!?]+$", "");
+        if(san.startsWith("O-O") || san.startsWith("0-0"))
+            return NO_MOVE;
+        int equals = san.indexOf('=');
+        if(equals >= 0)
+        {
+            if(!san.substring(equals + 1).equals("Q"))
+                return NO_MOVE;
+            san = san.substring(0, equals);
+        }
+        if(san.length() < 2)
+            return NO_MOVE;
+        int piece = Pawn;
+        int start = 0;
+        int letter = "PNBRQK".indexOf(san.charAt(0));
+        if(letter >= 0)
+        {
+            piece = new int[] { Pawn, Knight, Bishop, Rook, Queen, King }[letter];
+            start = 1;
+        }
+        int destCol = san.charAt(san.length() - 2) - 'a';
+        int destRow = san.charAt(san.length() - 1) - '1';
+        if(destCol < 0 || destCol >= 8 || destRow < 0 || destRow >= 8)
+            return NO_MOVE;
+        int srcCol = -1;
+        int srcRow = -1;
+        for(int i = start; i < san.length() - 2; i++)
+        {
+            char c = san.charAt(i);
+            if(c >= 'a' && c <= 'h')
+                srcCol = c - 'a';
+            else if(c >= '1' && c <= '8')
+                srcRow = c - '1';
+            else if(c != 'x')
+                return NO_MOVE;
+        }
+        
+        int[] moves = new int[MAX_MOVES];
+        int count = generateMoves(white, moves);
+        int found = NO_MOVE;
+        UndoInfo undo = new UndoInfo();
+        for(int i = 0; i < count; i++)
+        {
+            int m = moves[i];
+            if(movePiece(m) != piece || moveTo(m) != destRow * 8 + destCol
+                || (srcCol >= 0 && (moveFrom(m) & 7) != srcCol) || (srcRow >= 0 && (moveFrom(m) >> 3) != srcRow))
+                continue;
+            if(found == NO_MOVE)
+            {
+                found = m;
+                continue;
+            }
+            //ambiguous: keep the one that doesn't leave the king under attack
+            makeMove(found, undo);
+            boolean foundExposesKing = kingAttacked(white);
+            unmakeMove(found, undo);
+            if(foundExposesKing)
+                found = m;
+        }
+        return found;
+    }
+    
+    /// Plays a space separated list of moves in coordinate notation, starting
+    /// with the specified color. Returns true iff white is to move afterward.
+    boolean playMoves(String line, boolean white) throws Exception
+    {
+        for(String text : line.trim().split("\\s+"))
+        {
+            if(text.isEmpty())
+                continue;
+            int m = parseMove(text, white);
+            if(m == NO_MOVE)
+                throw new Exception("invalid move " + text);
+            move(moveFrom(m) & 7, moveFrom(m) >> 3, moveTo(m) & 7, moveTo(m) >> 3);
+            white = !white;
+        }
+        return white;
+    }
+    
+    /*
+     * Sets up the position in a FEN record, or in the first four fields of an
+     * EPD record, and returns true iff white is to move. This program has no
+     * castling or en passant, so those fields are skipped. The halfmove clock
+     * starts the count toward the no-progress draw. The board is left alone
+     * if the record can't be read.
+     */
+    boolean setFen(String fen) throws Exception
+    {
+        String[] fields = fen.trim().split("\\s+");
+        if(fields.length < 2)
+            throw new Exception("FEN needs the pieces and the side to move: " + fen);
+        String[] ranks = fields[0].split("/");
+        if(ranks.length != 8)
+            throw new Exception("FEN needs 8 ranks: " + fields[0]);
+        int[] nibbles = new int[64];
+        int[] kings = new int[2];
+        for(int i = 0; i < 8; i++)
+        {
+            int row = 7 - i;
+            int col = 0;
+            for(char c : ranks[i].toCharArray())
+            {
+                if(c >= '1' && c <= '8')
                 {
-                    if(!checkPawnMove(pOutMoves, col, inc(row), false, bWhite) && row == 1)
-                        checkPawnMove(pOutMoves, col, inc(inc(row)), false, bWhite);
-                    checkPawnMove(pOutMoves, inc(col), inc(row), true, bWhite);
-                    checkPawnMove(pOutMoves, dec(col), inc(row), true, bWhite);
+                    col += c - '0';
+                    continue;
                 }
-                else
+                int piece = FEN_LETTERS.indexOf(Character.toLowerCase(c));
+                if(piece < Pawn || col >= 8)
+                    throw new Exception("bad FEN rank " + ranks[i]);
+                if(piece == Pawn && (row == 0 || row == 7))
+                    throw new Exception("pawn on the back rank in " + ranks[i]);
+                boolean white = Character.isUpperCase(c);
+                if(piece == King)
+                    kings[white ? 1 : 0]++;
+                nibbles[row * 8 + col++] = piece | (white ? WhiteMask : 0);
+            }
+            if(col != 8)
+                throw new Exception("FEN rank " + ranks[i] + " doesn't have 8 squares");
+        }
+        if(kings[0] != 1 || kings[1] != 1)
+            throw new Exception("each side needs one king");
+        if(!fields[1].equals("w") && !fields[1].equals("b"))
+            throw new Exception("side to move must be w or b, not " + fields[1]);
+        boolean white = fields[1].equals("w");
+        int halfmoves = (fields.length >= 5 && fields[4].matches("\\d+")) ? Integer.parseInt(fields[4]) : 0;
+        int fullmoves = (fields.length >= 6 && fields[5].matches("\\d+")) ? Math.max(1, Integer.parseInt(fields[5])) : 1;
+        
+        for(int sq = 0; sq < 64; sq++)
+            setSquare(sq, nibbles[sq]);
+        m_historyLength = 0;
+        m_reversiblePlies = halfmoves;
+        m_repetitionPlies = halfmoves;
+        m_startPly = 2 * (fullmoves - 1) + (white ? 0 : 1);
+        return white;
+    }
+    
+    /// Writes the position as a FEN record with the specified side to move
+    String toFen(boolean white)
+    {
+        StringBuilder sb = new StringBuilder();
+        for(int row = 7; row >= 0; row--)
+        {
+            int empty = 0;
+            for(int col = 0; col < 8; col++)
+            {
+                int nibble = getSquare(row * 8 + col);
+                if(nibble == None)
                 {
-                    if(!checkPawnMove(pOutMoves, col, dec(row), false, bWhite) && row == 6)
-                        checkPawnMove(pOutMoves, col, dec(dec(row)), false, bWhite);
-                    checkPawnMove(pOutMoves, inc(col), dec(row), true, bWhite);
-                    checkPawnMove(pOutMoves, dec(col), dec(row), true, bWhite);
+                    empty++;
+                    continue;
                 }
-                break;
-            case Bishop:
-                for(i = inc(col), j=inc(row); true; i = inc(i), j = inc(j))
-                    if(checkMove(pOutMoves, i, j, bWhite))
-                        break;
-                for(i = dec(col), j=inc(row); true; i = dec(i), j = inc(j))
-                    if(checkMove(pOutMoves, i, j, bWhite))
-                        break;
-                for(i = inc(col), j=dec(row); true; i = inc(i), j = dec(j))
-                    if(checkMove(pOutMoves, i, j, bWhite))
-                        break;
-                for(i = dec(col), j=dec(row); true; i = dec(i), j = dec(j))
-                    if(checkMove(pOutMoves, i, j, bWhite))
-                        break;
-                break;
-            case Knight:
-                checkMove(pOutMoves, inc(inc(col)), inc(row), bWhite);
-                checkMove(pOutMoves, inc(col), inc(inc(row)), bWhite);
-                checkMove(pOutMoves, dec(col), inc(inc(row)), bWhite);
-                checkMove(pOutMoves, dec(dec(col)), inc(row), bWhite);
-                checkMove(pOutMoves, dec(dec(col)), dec(row), bWhite);
-                checkMove(pOutMoves, dec(col), dec(dec(row)), bWhite);
-                checkMove(pOutMoves, inc(col), dec(dec(row)), bWhite);
-                checkMove(pOutMoves, inc(inc(col)), dec(row), bWhite);
-                break;
-            case Rook:
-                for(i = inc(col); true; i = inc(i))
-                    if(checkMove(pOutMoves, i, row, bWhite))
-                        break;
-                for(i = dec(col); true; i = dec(i))
-                    if(checkMove(pOutMoves, i, row, bWhite))
-                        break;
-                for(j = inc(row); true; j = inc(j))
-                    if(checkMove(pOutMoves, col, j, bWhite))
-                        break;
-                for(j = dec(row); true; j = dec(j))
-                    if(checkMove(pOutMoves, col, j, bWhite))
-                        break;
-                break;
-            case Queen:
-                for(i = inc(col); true; i = inc(i))
-                    if(checkMove(pOutMoves, i, row, bWhite))
-                        break;
-                for(i = dec(col); true; i = dec(i))
-                    if(checkMove(pOutMoves, i, row, bWhite))
-                        break;
-                for(j = inc(row); true; j = inc(j))
-                    if(checkMove(pOutMoves, col, j, bWhite))
-                        break;
-                for(j = dec(row); true; j = dec(j))
-                    if(checkMove(pOutMoves, col, j, bWhite))
-                        break;
-                for(i = inc(col), j=inc(row); true; i = inc(i), j = inc(j))
-                    if(checkMove(pOutMoves, i, j, bWhite))
-                        break;
-                for(i = dec(col), j=inc(row); true; i = dec(i), j = inc(j))
-                    if(checkMove(pOutMoves, i, j, bWhite))
-                        break;
-                for(i = inc(col), j=dec(row); true; i = inc(i), j = dec(j))
-                    if(checkMove(pOutMoves, i, j, bWhite))
-                        break;
-                for(i = dec(col), j=dec(row); true; i = dec(i), j = dec(j))
-                    if(checkMove(pOutMoves, i, j, bWhite))
-                        break;
-                break;
-            case King:
-                checkMove(pOutMoves, inc(col), row, bWhite);
-                checkMove(pOutMoves, inc(col), inc(row), bWhite);
-                checkMove(pOutMoves, col, inc(row), bWhite);
-                checkMove(pOutMoves, dec(col), inc(row), bWhite);
-                checkMove(pOutMoves, dec(col), row, bWhite);
-                checkMove(pOutMoves, dec(col), dec(row), bWhite);
-                checkMove(pOutMoves, col, dec(row), bWhite);
-                checkMove(pOutMoves, inc(col), dec(row), bWhite);
-                break;
-            default:
-                break;
+                if(empty > 0)
+                    sb.append(empty);
+                empty = 0;
+                char c = FEN_LETTERS.charAt(nibble & PieceMask);
+                sb.append((nibble & WhiteMask) != 0 ? Character.toUpperCase(c) : c);
+            }
+            if(empty > 0)
+                sb.append(empty);
+            if(row > 0)
+                sb.append('/');
         }
-        return pOutMoves;
+        sb.append(white ? " w - - " : " b - - ").append(m_reversiblePlies).append(' ').append((m_startPly + m_historyLength) / 2 + 1);
+        return sb.toString();
     }
     
     /// Moves the piece from (xSrc, ySrc) to (xDest, yDest). If this move
@@ -317,6 +951,7 @@ class ChessState
             throw new Exception("There is no piece in the source location");
         if(target != None && isWhite(xSrc, ySrc) == isWhite(xDest, yDest))
             throw new Exception("It is illegal to take your own piece");
+        pushHistory(target != None || p == Pawn);
         if(p == Pawn && (yDest == 0 || yDest == 7))
             p = Queen; // a pawn that crosses the board becomes a queen
         boolean white = isWhite(xSrc, ySrc);
@@ -327,212 +962,5054 @@ class ChessState
             // If you take the opponent's king, remove all of the opponent's pieces. This
             // makes sure that look-ahead strategies don't try to look beyond the end of
             // the game (example: sacrifice a king for a king and some other piece.)
-            int x, y;
-            for(y = 0; y < 8; y++)
+            removeAll(!white);
+            return true;
+        }
+        return false;
+    }
+    
+    /// Removes every piece of the specified color from the board
+    void removeAll(boolean white)
+    {
+        for(long b = m_colors[white ? 1 : 0]; b != 0; b &= b - 1)
+            setSquare(Long.numberOfTrailingZeros(b), None);
+    }
+    
+    /// Makes a packed move in place, following the same rules as move(), and
+    /// records what is needed to take it back in undo. Returns true iff the
+    /// move took a king and ended the game. The move is not validated.
+    boolean makeMove(int move, UndoInfo undo)
+    {
+        int from = moveFrom(move);
+        int to = moveTo(move);
+        int nibble = getSquare(from);
+        undo.captured = getSquare(to);
+        undo.gameOver = ((undo.captured & PieceMask) == King);
+        undo.reversiblePlies = m_reversiblePlies;
+        undo.repetitionPlies = m_repetitionPlies;
+        pushHistory(undo.captured != None || (nibble & PieceMask) == Pawn);
+        if(undo.gameOver)
+            undo.save(this);
+        setSquare(to, isPromotion(move) ? (Queen | (nibble & WhiteMask)) : nibble);
+        setSquare(from, None);
+        if(undo.gameOver)
+            removeAll((undo.captured & WhiteMask) != 0);
+        return undo.gameOver;
+    }
+    
+    /// Takes back a move made with makeMove. Moves must be taken back in the
+    /// reverse order they were made.
+    void unmakeMove(int move, UndoInfo undo)
+    {
+        m_historyLength--;
+        m_reversiblePlies = undo.reversiblePlies;
+        m_repetitionPlies = undo.repetitionPlies;
+        if(undo.gameOver)
+        {
+            undo.restore(this);
+            return;
+        }
+        int from = moveFrom(move);
+        int to = moveTo(move);
+        int nibble = getSquare(to);
+        setSquare(from, isPromotion(move) ? (Pawn | (nibble & WhiteMask)) : nibble);
+        setSquare(to, undo.captured);
+    }
+    
+    /// Records the position about to be left in the history. An irreversible
+    /// move (a capture or a pawn move) means no earlier position can come back.
+    void pushHistory(boolean irreversible)
+    {
+        if(m_historyLength == m_historyKeys.length)
+            m_historyKeys = Arrays.copyOf(m_historyKeys, 2 * m_historyKeys.length);
+        m_historyKeys[m_historyLength++] = m_hash;
+        m_reversiblePlies = irreversible ? 0 : m_reversiblePlies + 1;
+        m_repetitionPlies = irreversible ? 0 : m_repetitionPlies + 1;
+    }
+    
+    /// Passes the move to the other side, for null move pruning. A repetition
+    /// can't reach back past a null move, because the side to move would differ,
+    /// but the null move is one more ply without progress like any other.
+    void makeNullMove(UndoInfo undo)
+    {
+        undo.reversiblePlies = m_reversiblePlies;
+        undo.repetitionPlies = m_repetitionPlies;
+        pushHistory(false);
+        m_repetitionPlies = 0;
+    }
+    
+    void unmakeNullMove(UndoInfo undo)
+    {
+        m_historyLength--;
+        m_reversiblePlies = undo.reversiblePlies;
+        m_repetitionPlies = undo.repetitionPlies;
+    }
+    
+    /// Returns true iff this position, with the same side to move, came up
+    /// before. Only positions since the last capture, pawn move or null move can match,
+    /// and only every second one has the same side to move, so this is a few
+    /// compares at most.
+    boolean isRepetition()
+    {
+        int oldest = Math.max(0, m_historyLength - m_repetitionPlies);
+        for(int i = m_historyLength - 2; i >= oldest; i -= 2)
+        {
+            if(m_historyKeys[i] == m_hash)
+                return true;
+        }
+        return false;
+    }
+    
+    /// Returns how many times this position came up before, with the same side to move
+    int repetitions()
+    {
+        int count = 0;
+        int oldest = Math.max(0, m_historyLength - m_repetitionPlies);
+        for(int i = m_historyLength - 2; i >= oldest; i -= 2)
+        {
+            if(m_historyKeys[i] == m_hash)
+                count++;
+        }
+        return count;
+    }
+    
+    /// Hashes the part of the history a search can see: the plies since the
+    /// last capture or pawn move and the positions in between. Two games that
+    /// reach the same position with the same key score it the same way.
+    long reversibleHistoryKey()
+    {
+        long key = m_reversiblePlies;
+        for(int i = Math.max(0, m_historyLength - m_reversiblePlies); i < m_historyLength; i++)
+            key = (key ^ m_historyKeys[i]) * 0x9e3779b97f4a7c15L;
+        return key;
+    }
+    
+    /// Returns why the game is drawn in this position, or null if it isn't:
+    /// the position came up for the third time, or drawPlies plies went by
+    /// without a capture or a pawn move
+    String drawReason(int drawPlies)
+    {
+        if(repetitions() >= 2)
+            return "repetition";
+        if(m_reversiblePlies >= drawPlies)
+            return "no progress";
+        return null;
+    }
+    
+    /// What makeMove needs to remember to take a move back. When a king is
+    /// taken the whole board is saved, because the rest of that side goes with it.
+    static class UndoInfo
+    {
+        int captured;
+        boolean gameOver;
+        int reversiblePlies;
+        int repetitionPlies;
+        int[] rows = new int[8];
+        long[] pieces = new long[16];
+        long[] colors = new long[2];
+        long hash;
+        long pawnHash;
+        int material;
+        int positional;
+        
+        void save(ChessState state)
+        {
+            System.arraycopy(state.m_rows, 0, rows, 0, 8);
+            System.arraycopy(state.m_pieces, 0, pieces, 0, 16);
+            System.arraycopy(state.m_colors, 0, colors, 0, 2);
+            hash = state.m_hash;
+            pawnHash = state.m_pawnHash;
+            material = state.m_material;
+            positional = state.m_positional;
+        }
+        
+        void restore(ChessState state)
+        {
+            System.arraycopy(rows, 0, state.m_rows, 0, 8);
+            System.arraycopy(pieces, 0, state.m_pieces, 0, 16);
+            System.arraycopy(colors, 0, state.m_colors, 0, 2);
+            state.m_hash = hash;
+            state.m_pawnHash = pawnHash;
+            state.m_material = material;
+            state.m_positional = positional;
+        }
+    }
+    
+    /// Returns true iff both states have the same pieces on the same squares
+    boolean sameBoard(ChessState that)
+    {
+        return Arrays.equals(m_rows, that.m_rows) && Arrays.equals(m_pieces, that.m_pieces)
+            && Arrays.equals(m_colors, that.m_colors) && m_hash == that.m_hash && m_pawnHash == that.m_pawnHash
+            && m_material == that.m_material && m_positional == that.m_positional;
+    }
+    
+    /// Represents a possible  move
+    static class ChessMove
+    {
+        int xSource;
+        int ySource;
+        int xDest;
+        int yDest;
+    }
+    
+    /// Iterates through all the possible moves for the specified color.
+    static class ChessMoveIterator
+    {
+        int[] moves;
+        int count;
+        int index;
+        
+        /// Constructs a move iterator
+        ChessMoveIterator(ChessState curState, boolean whiteMoves)
+        {
+            moves = new int[MAX_MOVES];
+            count = curState.generateMoves(whiteMoves, moves);
+            index = 0;
+        }
+        
+        /// Returns true iff there is another move to visit
+        boolean hasNext()
+        {
+            return index < count;
+        }
+        
+        /// Returns the next move
+        ChessState.ChessMove next()
+        {
+            return toChessMove(moves[index++]);
+        }
+    }
+    
+    /// A fixed-size hash table of search results, stored in two primitive
+    /// arrays. Each bucket has two entries: the first keeps the deepest result
+    /// unless it is left over from an earlier search, and the second is always
+    /// replaced.
+    /// Entry data layout: bits 0-19 score, bits 20-39 packed move,
+    /// bits 40-47 depth, bits 48-49 bound, bits 50-57 generation.
+    /// Several search threads can share one table without locks: each slot
+    /// stores key ^ data, so an entry torn by two threads writing at once no
+    /// longer matches its key and is ignored.
+    static class TranspositionTable
+    {
+        static final int BOUND_LOWER = 1; // score is at least this
+        static final int BOUND_UPPER = 2; // score is at most this
+        static final int BOUND_EXACT = 3;
+        static final int GENERATIONS = 256; // the generation wraps around after this many searches
+        
+        long[] m_keys;
+        long[] m_data;
+        int m_bucketMask;
+        int m_generation; // of the search in progress, stored in every entry it writes
+        
+        /// Creates a table that uses about the specified number of megabytes
+        TranspositionTable(int megabytes)
+        {
+            int buckets = buckets(megabytes);
+            m_keys = new long[buckets * 2];
+            m_data = new long[buckets * 2];
+            m_bucketMask = buckets - 1;
+        }
+        
+        /// For tables that keep their entries somewhere else
+        TranspositionTable()
+        {
+        }
+        
+        /// Returns how many buckets fit in about the specified number of megabytes
+        static int buckets(int megabytes)
+        {
+            long entries = Math.max(2, ((long)megabytes << 20) / 16);
+            return Integer.highestOneBit((int)Math.min(entries / 2, 1 << 29));
+        }
+        
+        /// Creates a table in memory, or mapped from the file if there is one
+        static TranspositionTable open(int megabytes, String file) throws IOException
+        {
+            return (file == null) ? new TranspositionTable(megabytes) : new MappedTranspositionTable(Paths.get(file), megabytes);
+        }
+        
+        // the slots, for tables that keep them somewhere else
+        long key(int i)
+        {
+            return m_keys[i];
+        }
+        
+        long data(int i)
+        {
+            return m_data[i];
+        }
+        
+        void put(int i, long key, long data)
+        {
+            m_data[i] = data;
+            m_keys[i] = key;
+        }
+        
+        /// Returns the data stored for key, or 0 if there is none
+        long probe(long key)
+        {
+            int i = ((int)key & m_bucketMask) << 1;
+            long data = data(i);
+            if((key(i) ^ data) == key && data != 0)
+                return data;
+            data = data(i + 1);
+            if((key(i + 1) ^ data) == key && data != 0)
+                return data;
+            return 0;
+        }
+        
+        void store(long key, int depth, int bound, int score, int move)
+        {
+            int i = ((int)key & m_bucketMask) << 1;
+            long old = data(i);
+            boolean sameKey = ((key(i) ^ old) == key);
+            if(!sameKey && depth < depth(old) && generation(old) == m_generation)
+            {
+                i++;
+                old = data(i);
+                sameKey = ((key(i) ^ old) == key);
+            }
+            if(move == NO_MOVE && sameKey)
+                move = move(old); // keep the best move we already know
+            long data = (score & 0xfffffL) | ((long)move << 20) | ((long)depth << 40) | ((long)bound << 48) | ((long)m_generation << 50);
+            put(i, key ^ data, data);
+        }
+        
+        /// Starts a new search, so that entries from earlier searches can be
+        /// replaced even where they are deeper. They can still be used until then.
+        void newSearch()
+        {
+            m_generation = (m_generation + 1) % GENERATIONS;
+        }
+        
+        /// Empties the table and starts the generations over, so that what is
+        /// searched next doesn't depend on what was searched before
+        void clear()
+        {
+            Arrays.fill(m_keys, 0);
+            Arrays.fill(m_data, 0);
+            m_generation = 0;
+        }
+        
+        /// Makes sure everything stored so far will outlast the program
+        void flush()
+        {
+        }
+        
+        static int score(long data)
+        {
+            return (int)(data << 44) >> 44;
+        }
+        
+        static int move(long data)
+        {
+            return (int)(data >>> 20) & 0xfffff;
+        }
+        
+        static int depth(long data)
+        {
+            return (int)(data >>> 40) & 0xff;
+        }
+        
+        static int bound(long data)
+        {
+            return (int)(data >>> 48) & 3;
+        }
+        
+        static int generation(long data)
+        {
+            return (int)(data >>> 50) & 0xff;
+        }
+    }
+    
+    /*
+     * A transposition table kept in a memory-mapped file instead of on the
+     * heap, so the search results outlive the program: the next run with the
+     * same file starts where the last one stopped. The file holds a header
+     * (a magic number that also names the entry layout, the bucket count and
+     * the latest generation) followed by the slots, each the key ^ data and
+     * data longs. A slot only half written when the program stopped fails the
+     * same key check as one torn by two threads, so it is never used. A file
+     * of a different size or layout is started over.
+     */
+    static class MappedTranspositionTable extends TranspositionTable
+    {
+        static final long MAGIC = 0x4142_5054_5401_0000L; // "ABPTT", layout 1
+        static final int HEADER_BYTES = 64;
+        static final int MAX_MEGABYTES = 1024; // one mapping holds at most 2 GB
+        
+        MappedByteBuffer m_buffer;
+        
+        MappedTranspositionTable(Path file, int megabytes) throws IOException
+        {
+            int buckets = buckets(Math.min(megabytes, MAX_MEGABYTES));
+            m_bucketMask = buckets - 1;
+            long size = HEADER_BYTES + (long)buckets * 2 * 16;
+            try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+            {
+                boolean reuse = false;
+                if(channel.size() == size)
+                {
+                    ByteBuffer header = ByteBuffer.allocate(24).order(ByteOrder.nativeOrder());
+                    channel.read(header, 0);
+                    reuse = header.getLong(0) == MAGIC && header.getLong(8) == buckets;
+                    m_generation = reuse ? (int)Math.floorMod(header.getLong(16), (long)GENERATIONS) : 0;
+                }
+                if(!reuse)
+                    channel.truncate(0); // the mapping grows it back filled with zeros
+                m_buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                m_buffer.order(ByteOrder.nativeOrder());
+                m_buffer.putLong(0, MAGIC);
+                m_buffer.putLong(8, buckets);
+                m_buffer.putLong(16, m_generation);
+            }
+        }
+        
+        long key(int i)
+        {
+            return m_buffer.getLong(HEADER_BYTES + 16 * i);
+        }
+        
+        long data(int i)
+        {
+            return m_buffer.getLong(HEADER_BYTES + 16 * i + 8);
+        }
+        
+        void put(int i, long key, long data)
+        {
+            m_buffer.putLong(HEADER_BYTES + 16 * i + 8, data);
+            m_buffer.putLong(HEADER_BYTES + 16 * i, key);
+        }
+        
+        void newSearch()
+        {
+            super.newSearch();
+            m_buffer.putLong(16, m_generation);
+        }
+        
+        void clear()
+        {
+            byte[] zeros = new byte[1 << 16];
+            for(int offset = HEADER_BYTES; offset < m_buffer.capacity(); offset += zeros.length)
+                m_buffer.put(offset, zeros, 0, Math.min(zeros.length, m_buffer.capacity() - offset));
+            m_generation = 0;
+            m_buffer.putLong(16, m_generation);
+        }
+        
+        void flush()
+        {
+            m_buffer.force();
+        }
+    }
+    
+    /// Remembers the pawn structure score of recent pawn formations, keyed by
+    /// m_pawnHash. Pawns move far less often than the other pieces, so nearly
+    /// every leaf finds its formation here. Each search thread has its own
+    /// table, so it needs no locking. An empty slot has key 0 and score 0,
+    /// which is right for a board without pawns.
+    static class PawnTable
+    {
+        static final int ENTRIES = 1 << 14;
+        static final int MISSING = Integer.MIN_VALUE;
+        
+        long[] m_keys = new long[ENTRIES];
+        int[] m_scores = new int[ENTRIES];
+        
+        /// Returns the score stored for the pawn key, or MISSING
+        int probe(long key)
+        {
+            int i = (int)key & (ENTRIES - 1);
+            return m_keys[i] == key ? m_scores[i] : MISSING;
+        }
+        
+        void store(long key, int score)
+        {
+            int i = (int)key & (ENTRIES - 1);
+            m_keys[i] = key;
+            m_scores[i] = score;
+        }
+    }
+    
+    /*
+     * Scores many positions at once, for callers that have a batch of leaf
+     * positions rather than one board being moved around (the search itself
+     * keeps its score up to date in setSquare). The positions sit in one
+     * int[] arena, 8 ints each in the m_rows encoding (see packRows), and the
+     * score of each is the material plus piece-square value, positive when
+     * white is favored; pawn structure isn't included.
+     */
+    interface BatchEvaluator
+    {
+        /// Writes the scores of the first count positions in rows into scores
+        void evaluate(int[] rows, int count, int[] scores);
+        
+        String name();
+    }
+    
+    /// Looks up one nibble at a time; works on every JVM
+    static class ScalarBatchEvaluator implements BatchEvaluator
+    {
+        public void evaluate(int[] rows, int count, int[] scores)
+        {
+            for(int p = 0; p < count; p++)
+            {
+                int score = 0;
+                for(int row = 0; row < 8; row++)
+                {
+                    int packed = rows[8 * p + row];
+                    for(int col = 0; packed != 0; col++, packed >>>= 4)
+                        score += SQUARE_SCORES[(packed & AllMask) << 6 | row << 3 | col];
+                }
+                scores[p] = score;
+            }
+        }
+        
+        public String name()
+        {
+            return "scalar";
+        }
+    }
+    
+    /// Returns the SIMD evaluator in VectorEvaluator.java if it was compiled and
+    /// the JVM was started with --add-modules jdk.incubator.vector, and the
+    /// scalar one otherwise. It is loaded by name so that this file still
+    /// compiles and runs on its own.
+    static BatchEvaluator batchEvaluator()
+    {
+        try
+        {
+            return (BatchEvaluator)Class.forName("VectorEvaluator").getDeclaredConstructor().newInstance();
+        }
+        catch(ReflectiveOperationException | LinkageError e)
+        {
+            return new ScalarBatchEvaluator();
+        }
+    }
+    
+    /// Copies the board into the arena as the index-th position for a BatchEvaluator
+    void packRows(int[] arena, int index)
+    {
+        System.arraycopy(m_rows, 0, arena, 8 * index, 8);
+    }
+    
+    /// Quiescence search skips a capture unless winning the piece plus this much could reach alpha
+    static final int DELTA_MARGIN = 20;
+    
+    /// Quiescence search answers an attack on the king with every move only this
+    /// many plies past the horizon; deeper than that it stands pat, because
+    /// checking moves that answer checks could otherwise go on until MAX_PLY
+    static final int QUIESCENCE_EVASION_PLIES = 6;
+    
+    /// Bound on every search value
+    static final int INFINITY = 100000;
+    
+    /// Value of a drawn position
+    static final int DRAW_SCORE = 0;
+    
+    /// Plies without a capture or pawn move after which a game is drawn, unless set otherwise
+    static final int DEFAULT_DRAW_PLIES = 100;
+    
+    /// Value of taking the opponent's king right now. A win (or loss) in n
+    /// plies from the root is worth WIN_SCORE - n, so the search goes for the
+    /// quickest win and holds out the longest when losing. Anything beyond
+    /// WIN_THRESHOLD is a known result rather than an evaluation.
+    static final int WIN_SCORE = 50000;
+    static final int WIN_THRESHOLD = WIN_SCORE - 1000;
+    
+    /// Half the width of the first aspiration window around the previous
+    /// iteration's value; it doubles each time the value falls outside
+    static final int ASPIRATION_WINDOW = 15;
+    static final int ASPIRATION_MIN_DEPTH = 4;
+    
+    /// Selective search. A null move is searched this many plies shallower than a
+    /// real one, and is only tried with at least NULL_MOVE_MIN_DEPTH to go. With
+    /// no more than NULL_MOVE_VERIFY_MATERIAL in pieces, where passing might be
+    /// the best move, a null move cutoff is confirmed by a reduced search first.
+    static final int NULL_MOVE_MIN_DEPTH = 3;
+    static final int NULL_MOVE_VERIFY_MATERIAL = 99; // a rook and a bishop
+    
+    /// Quiet moves from this index on are searched to a reduced depth, indexed by depth and move index
+    static final int LMR_MIN_MOVES = 3;
+    static final int[][] LMR_REDUCTIONS = new int[MAX_PLY][MAX_MOVES];
+    
+    /// With this few plies to go, quiet moves are skipped (futility) and the node
+    /// is dropped into quiescence (razoring) when the evaluation plus the margin
+    /// is still below alpha
+    static final int[] FUTILITY_MARGIN = { 0, 15, 35 };
+    static final int[] RAZOR_MARGIN = { 0, 25, 45 };
+    
+    static
+    {
+        for(int depth = 1; depth < MAX_PLY; depth++)
+        {
+            for(int index = 1; index < MAX_MOVES; index++)
+                LMR_REDUCTIONS[depth][index] = (int)(0.75 + Math.log(depth) * Math.log(index) / 2.25);
+        }
+    }
+    
+    /// Move ordering scores; every category is above the ones tried after it
+    static final int HASH_MOVE_SCORE = 1 << 30;
+    static final int CAPTURE_SCORE = 1 << 28;
+    static final int KILLER_SCORE = 1 << 26;
+    
+    /// Scratch space owned by one search. Each ply gets its own preallocated
+    /// move buffer and undo record so that the search does not allocate while it runs.
+    static class SearchContext
+    {
+        int[][] m_moves;
+        UndoInfo[] m_undo;
+        TranspositionTable m_table; // may be null
+        long m_nodes;
+        
+        // limits for the current search, set by start()
+        volatile boolean m_stop;
+        volatile AtomicBoolean m_cancel; // the caller's own stop flag for this search; may be null
+        long m_startTime;
+        volatile long m_softDeadline; // don't start another iteration after this
+        volatile long m_hardDeadline; // stop searching at this time
+        long m_nodeLimit;
+        int m_completedDepth;
+        
+        // result of the root search
+        int m_bestMove;
+        int m_bestValue;
+        int m_rootMove; // best move of the root search in progress
+        boolean m_helper; // helper threads in a parallel search may stop at any time
+        
+        // evaluation noise: a fixed -1, 0 or +1 per position, picked by hashing the
+        // position with the seed, so the same seed always plays the same way
+        long m_jitterSeed;
+        boolean m_jitter = true;
+        
+        // move ordering
+        int[][] m_scores;  // ordering score of each move in m_moves
+        int[][] m_killers; // two quiet moves per ply that recently caused a cutoff
+        int[][] m_history; // [color][from | to << 6], how often a quiet move caused a cutoff
+        
+        PawnTable m_pawnTable = new PawnTable();
+        
+        // statistics for the current search; the counters are only touched when
+        // m_collectStats is set, and each thread has its own so they never contend
+        SearchStats m_stats = new SearchStats();
+        boolean m_collectStats = true;
+        
+        // search features that can be switched off to measure what they gain
+        boolean m_quiescence = true;
+        boolean m_nullMovePruning = true;
+        boolean m_lateMoveReductions = true;
+        boolean m_futilityPruning = true; // and razoring
+        
+        // triangular PV table: m_pv[ply] holds the best line from ply on, in
+        // m_pv[ply][ply] up to m_pv[ply][m_pvLength[ply] - 1]
+        int[][] m_pv = new int[MAX_PLY + 1][MAX_PLY + 1];
+        int[] m_pvLength = new int[MAX_PLY + 1];
+        int[] m_bestLine = new int[MAX_PLY]; // PV of the last completed iteration
+        int m_bestLineLength;
+        
+        // endgame tablebases, may be null
+        Tablebases m_tablebases;
+        int[] m_tablebaseSquares = new int[Tablebases.MAX_PIECES];
+        
+        // a game is drawn after this many plies without a capture or pawn move
+        int m_drawPlies = DEFAULT_DRAW_PLIES;
+        
+        // selective search state
+        boolean[] m_nullMovePlayed = new boolean[MAX_PLY]; // the move made at this ply was a null move
+        int m_verifying; // inside a null move verification search, where null moves are not allowed
+        
+        // called with the result of each completed iteration, may be null
+        Consumer<SearchResult> m_iterationListener;
+        
+        SearchContext()
+        {
+            this(null);
+        }
+        
+        SearchContext(TranspositionTable table)
+        {
+            m_table = table;
+            m_moves = new int[MAX_PLY][MAX_MOVES];
+            m_scores = new int[MAX_PLY][MAX_MOVES];
+            m_killers = new int[MAX_PLY][2];
+            m_history = new int[2][64 * 64];
+            m_undo = new UndoInfo[MAX_PLY];
+            for(int i = 0; i < MAX_PLY; i++)
+                m_undo[i] = new UndoInfo();
+            m_hardDeadline = Long.MAX_VALUE;
+            m_softDeadline = Long.MAX_VALUE;
+        }
+        
+        /// Returns the leaf evaluation of a position from the point of view of the side to move
+        int evaluate(ChessState state, boolean white)
+        {
+            int score = evaluate(state);
+            return white ? score : -score;
+        }
+        
+        /// Returns the leaf evaluation of a position, positive when white is favored
+        int evaluate(ChessState state)
+        {
+            int pawns = m_pawnTable.probe(state.m_pawnHash);
+            if(m_collectStats)
+            {
+                m_stats.pawnProbes++;
+                if(pawns != PawnTable.MISSING)
+                    m_stats.pawnHits++;
+            }
+            if(pawns == PawnTable.MISSING)
+            {
+                pawns = state.pawnStructure();
+                m_pawnTable.store(state.m_pawnHash, pawns);
+            }
+            int score = state.m_material + state.m_positional + pawns;
+            if(m_jitter)
+            {
+                long mix = (state.m_hash ^ m_jitterSeed) * 0x9e3779b97f4a7c15L;
+                score += (int)((mix >>> 33) % 3) - 1;
+            }
+            return score;
+        }
+        
+        /// Forgets the move ordering learned in earlier searches, for a new game
+        void clearHistory()
+        {
+            for(int[] killers : m_killers)
+                Arrays.fill(killers, NO_MOVE);
+            for(int[] history : m_history)
+                Arrays.fill(history, 0);
+        }
+        
+        /// Resets the counters and works out the deadlines for a new search
+        void start(SearchLimits limits, boolean white)
+        {
+            if(!m_helper)
+            {
+                m_stop = m_cancel != null && m_cancel.get(); // a helper's flag is reset by the thread that will stop it
+                if(m_table != null)
+                    m_table.newSearch();
+            }
+            m_nodes = 0;
+            m_completedDepth = 0;
+            m_bestMove = NO_MOVE;
+            m_bestValue = 0;
+            m_bestLineLength = 0;
+            m_stats.reset();
+            for(int[] killers : m_killers)
+                Arrays.fill(killers, NO_MOVE);
+            for(int[] history : m_history)
+            {
+                for(int i = 0; i < history.length; i++)
+                    history[i] >>= 1; // older results count for less
+            }
+            m_startTime = System.nanoTime();
+            m_nodeLimit = limits.nodes > 0 ? limits.nodes : Long.MAX_VALUE;
+            setDeadlines(limits, white, m_startTime);
+        }
+        
+        /// Works out the deadlines from the time budget, counting from the
+        /// specified time. A ponder search has none until ponderhit().
+        synchronized void setDeadlines(SearchLimits limits, boolean white, long from)
+        {
+            long budget = limits.ponder ? 0 : limits.moveBudgetMillis(white);
+            if(budget > 0)
+            {
+                m_hardDeadline = from + budget * 1000000L;
+                m_softDeadline = from + budget * 500000L;
+            }
+            else
+            {
+                m_hardDeadline = Long.MAX_VALUE;
+                m_softDeadline = Long.MAX_VALUE;
+            }
+        }
+        
+        /// The opponent played the expected move, so a ponder search becomes an
+        /// ordinary one: its time budget starts now and it keeps everything it
+        /// has searched so far. Safe to call from another thread, even before
+        /// the search has started.
+        synchronized void ponderhit(SearchLimits limits, boolean white)
+        {
+            limits.ponder = false;
+            setDeadlines(limits, white, System.nanoTime());
+        }
+        
+        /// Called every so often by the search to see if it has run out of time or nodes
+        void checkLimits()
+        {
+            if(m_nodes >= m_nodeLimit || (m_hardDeadline != Long.MAX_VALUE && System.nanoTime() >= m_hardDeadline)
+               || (m_cancel != null && m_cancel.get()))
+                m_stop = true;
+        }
+        
+        /// Asks a running search to stop as soon as it can. Safe to call from another thread.
+        void stop()
+        {
+            m_stop = true;
+        }
+        
+        /// Returns true iff the search should unwind now. The first iteration always
+        /// runs to the end so that there is a move to play.
+        boolean stopped()
+        {
+            return m_stop && (m_helper || m_completedDepth > 0);
+        }
+        
+        long elapsedMillis()
+        {
+            return (System.nanoTime() - m_startTime) / 1000000L;
+        }
+        
+        /*
+         * Gives each move in the ply's buffer an ordering score: the hash move
+         * first, then captures and promotions by MVV-LVA (most valuable victim,
+         * least valuable attacker), then the two killer moves, then quiet moves
+         * by their history score.
+         */
+        void scoreMoves(int ply, int count, int hashMove, boolean white)
+        {
+            int[] moves = m_moves[ply];
+            int[] scores = m_scores[ply];
+            int[] history = m_history[white ? 1 : 0];
+            int killer0 = m_killers[ply][0];
+            int killer1 = m_killers[ply][1];
+            for(int i = 0; i < count; i++)
+            {
+                int m = moves[i];
+                if(m == hashMove)
+                    scores[i] = HASH_MOVE_SCORE;
+                else if(moveCaptured(m) != None || isPromotion(m))
+                    scores[i] = CAPTURE_SCORE + PIECE_VALUES[moveCaptured(m)] * 1024 - PIECE_VALUES[movePiece(m)]
+                                + (isPromotion(m) ? PIECE_VALUES[Queen] * 1024 : 0);
+                else if(m == killer0)
+                    scores[i] = KILLER_SCORE + 1;
+                else if(m == killer1)
+                    scores[i] = KILLER_SCORE;
+                else
+                    scores[i] = history[m & 4095];
+            }
+        }
+        
+        /// Swaps the best scored of the remaining moves into position index and returns it
+        int nextMove(int ply, int index, int count)
+        {
+            int[] moves = m_moves[ply];
+            int[] scores = m_scores[ply];
+            int best = index;
+            for(int i = index + 1; i < count; i++)
+            {
+                if(scores[i] > scores[best])
+                    best = i;
+            }
+            int m = moves[best];
+            moves[best] = moves[index];
+            moves[index] = m;
+            int score = scores[best];
+            scores[best] = scores[index];
+            scores[index] = score;
+            return m;
+        }
+        
+        /// Returns the tablebase value of a position at ply, or Tablebases.UNKNOWN
+        int probeTablebases(ChessState state, boolean white, int ply)
+        {
+            int score = m_tablebases.probe(state, white, ply, m_tablebaseSquares);
+            if(m_collectStats && score != Tablebases.UNKNOWN)
+                m_stats.tablebaseHits++;
+            return score;
+        }
+        
+        /// Keeps the root search's move, value and line as the result of a completed iteration
+        void completeIteration(int depth, int value)
+        {
+            m_bestValue = value;
+            m_bestMove = m_rootMove;
+            m_bestLineLength = m_pvLength[0];
+            System.arraycopy(m_pv[0], 0, m_bestLine, 0, m_bestLineLength);
+            m_completedDepth = depth;
+        }
+        
+        /// Returns the result of the last completed iteration
+        SearchResult result()
+        {
+            SearchResult result = new SearchResult();
+            result.bestMove = m_bestMove;
+            result.score = m_bestValue;
+            result.depth = m_completedDepth;
+            result.pv = Arrays.copyOf(m_bestLine, m_bestLineLength);
+            result.nodes = m_nodes;
+            return result;
+        }
+        
+        /// Makes move followed by the best line from the next ply the best line from ply
+        void updatePv(int ply, int move)
+        {
+            int[] line = m_pv[ply];
+            line[ply] = move;
+            int length = m_pvLength[ply + 1];
+            System.arraycopy(m_pv[ply + 1], ply + 1, line, ply + 1, length - (ply + 1));
+            m_pvLength[ply] = Math.max(length, ply + 1);
+        }
+        
+        /// Records that move caused a beta cutoff as the index'th move tried at this ply
+        void recordCutoff(int ply, int move, int index, int depth, boolean white)
+        {
+            if(m_collectStats)
+            {
+                m_stats.betaCutoffs++;
+                if(index == 0)
+                    m_stats.firstMoveCutoffs++;
+            }
+            if(moveCaptured(move) != None || isPromotion(move))
+                return;
+            if(m_killers[ply][0] != move)
+            {
+                m_killers[ply][1] = m_killers[ply][0];
+                m_killers[ply][0] = move;
+            }
+            int[] history = m_history[white ? 1 : 0];
+            history[move & 4095] += depth * depth;
+            if(history[move & 4095] >= KILLER_SCORE)
+            {
+                for(int i = 0; i < history.length; i++)
+                    history[i] >>= 1;
+            }
+        }
+    }
+    
+    /*
+     * Counters describing one search. Each search thread fills in its own copy
+     * and ParallelSearch adds them up once the search is over.
+     */
+    static class SearchStats
+    {
+        long nodes;
+        long leafEvaluations;
+        long betaCutoffs;
+        long firstMoveCutoffs;
+        long tableProbes;
+        long tableHits;
+        long tablebaseHits;
+        long pawnProbes;
+        long pawnHits;
+        long elapsedNanos;
+        int depth; // deepest completed iteration
+        long[] iterationNodes = new long[MAX_PLY]; // nodes the main thread used for each iteration
+        long[] iterationNanos = new long[MAX_PLY]; // time each iteration took
+        
+        void reset()
+        {
+            nodes = 0;
+            leafEvaluations = 0;
+            betaCutoffs = 0;
+            firstMoveCutoffs = 0;
+            tableProbes = 0;
+            tableHits = 0;
+            tablebaseHits = 0;
+            pawnProbes = 0;
+            pawnHits = 0;
+            elapsedNanos = 0;
+            depth = 0;
+            Arrays.fill(iterationNodes, 0);
+            Arrays.fill(iterationNanos, 0);
+        }
+        
+        /// Adds another thread's counters to these
+        void add(SearchStats that)
+        {
+            nodes += that.nodes;
+            leafEvaluations += that.leafEvaluations;
+            betaCutoffs += that.betaCutoffs;
+            firstMoveCutoffs += that.firstMoveCutoffs;
+            tableProbes += that.tableProbes;
+            tableHits += that.tableHits;
+            tablebaseHits += that.tablebaseHits;
+            pawnProbes += that.pawnProbes;
+            pawnHits += that.pawnHits;
+        }
+        
+        /// Copies everything, including the per-iteration figures
+        void copy(SearchStats that)
+        {
+            reset();
+            add(that);
+            elapsedNanos = that.elapsedNanos;
+            depth = that.depth;
+            System.arraycopy(that.iterationNodes, 0, iterationNodes, 0, MAX_PLY);
+            System.arraycopy(that.iterationNanos, 0, iterationNanos, 0, MAX_PLY);
+        }
+        
+        /// Percentage of beta cutoffs that came from the first move tried
+        double firstMoveCutoffRate()
+        {
+            return betaCutoffs == 0 ? 0 : 100.0 * firstMoveCutoffs / betaCutoffs;
+        }
+        
+        /// Percentage of transposition table probes that found an entry
+        double tableHitRate()
+        {
+            return tableProbes == 0 ? 0 : 100.0 * tableHits / tableProbes;
+        }
+        
+        /// Percentage of leaf evaluations that found their pawn structure in the pawn table
+        double pawnHitRate()
+        {
+            return pawnProbes == 0 ? 0 : 100.0 * pawnHits / pawnProbes;
+        }
+        
+        /// How many times more nodes the iteration at depth took than the one before it
+        double effectiveBranchingFactor(int depth)
+        {
+            if(depth < 2 || depth >= MAX_PLY || iterationNodes[depth - 1] == 0)
+                return 0;
+            return (double)iterationNodes[depth] / iterationNodes[depth - 1];
+        }
+        
+        long nodesPerSecond()
+        {
+            return elapsedNanos == 0 ? 0 : (long)(nodes * 1e9 / elapsedNanos);
+        }
+        
+        /// One line summary for logs
+        String summary()
+        {
+            StringBuilder sb = new StringBuilder();
+            sb.append(nodes).append(" nodes in ").append(elapsedNanos / 1000000).append(" ms (")
+              .append(nodesPerSecond()).append(" nps), ")
+              .append(String.format("%.1f%% of cutoffs on the first move, %.1f%% table hits, %.1f%% pawn table hits", firstMoveCutoffRate(), tableHitRate(), pawnHitRate()));
+            if(depth >= 2)
+                sb.append(String.format(", branching factor %.2f", effectiveBranchingFactor(depth)));
+            if(tablebaseHits > 0)
+                sb.append(", ").append(tablebaseHits).append(" tablebase hits");
+            return sb.toString();
+        }
+    }
+    
+    /// Management interface of SearchMonitor
+    public interface SearchMonitorMBean
+    {
+        long getSearches();
+        long getTotalNodes();
+        long getLastNodes();
+        long getLastNodesPerSecond();
+        long getLastTimeMillis();
+        int getLastDepth();
+        long getLastLeafEvaluations();
+        double getLastFirstMoveCutoffRate();
+        double getLastTableHitRate();
+        double getLastEffectiveBranchingFactor();
+        double[] getLastBranchingFactorPerDepth();
+        long[] getLastIterationMillis();
+        boolean isEnabled();
+        void setEnabled(boolean enabled);
+    }
+    
+    /*
+     * Publishes the statistics of a player's most recent search over JMX
+     * (for example to jconsole) under AlphaBetaPruningChess:type=Search,name=<name>,
+     * or <name>-2, <name>-3 and so on while that name is taken by another engine.
+     * It is updated once per search, never from inside the search itself.
+     * Turning it off also stops the search threads from counting.
+     */
+    static class SearchMonitor implements SearchMonitorMBean
+    {
+        SearchStats m_last = new SearchStats();
+        long m_searches;
+        long m_totalNodes;
+        volatile boolean m_enabled = true;
+        javax.management.ObjectName m_objectName; // the name it is registered under
+        
+        /// Registers a monitor with the platform MBean server, under the first
+        /// free name. The monitor is there until unregister() is called.
+        static SearchMonitor register(String name) throws Exception
+        {
+            SearchMonitor monitor = new SearchMonitor();
+            javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+            for(int n = 1; ; n++)
+            {
+                String unique = n == 1 ? name : name + "-" + n;
+                try
+                {
+                    monitor.m_objectName = server.registerMBean(monitor,
+                        new javax.management.ObjectName("AlphaBetaPruningChess:type=Search,name=" + unique)).getObjectName();
+                    return monitor;
+                }
+                catch(javax.management.InstanceAlreadyExistsException e)
+                {
+                    // another engine has the name
+                }
+            }
+        }
+        
+        /// Takes the monitor off the MBean server, if it is still on it
+        synchronized void unregister() throws Exception
+        {
+            if(m_objectName == null)
+                return;
+            java.lang.management.ManagementFactory.getPlatformMBeanServer().unregisterMBean(m_objectName);
+            m_objectName = null;
+        }
+        
+        synchronized void publish(SearchStats stats)
+        {
+            m_last.copy(stats);
+            m_searches++;
+            m_totalNodes += stats.nodes;
+        }
+        
+        public synchronized long getSearches() { return m_searches; }
+        public synchronized long getTotalNodes() { return m_totalNodes; }
+        public synchronized long getLastNodes() { return m_last.nodes; }
+        public synchronized long getLastNodesPerSecond() { return m_last.nodesPerSecond(); }
+        public synchronized long getLastTimeMillis() { return m_last.elapsedNanos / 1000000; }
+        public synchronized int getLastDepth() { return m_last.depth; }
+        public synchronized long getLastLeafEvaluations() { return m_last.leafEvaluations; }
+        public synchronized double getLastFirstMoveCutoffRate() { return m_last.firstMoveCutoffRate(); }
+        public synchronized double getLastTableHitRate() { return m_last.tableHitRate(); }
+        public synchronized double getLastEffectiveBranchingFactor() { return m_last.effectiveBranchingFactor(m_last.depth); }
+        
+        public synchronized double[] getLastBranchingFactorPerDepth()
+        {
+            double[] factors = new double[m_last.depth + 1];
+            for(int d = 2; d <= m_last.depth; d++)
+                factors[d] = m_last.effectiveBranchingFactor(d);
+            return factors;
+        }
+        
+        public synchronized long[] getLastIterationMillis()
+        {
+            long[] millis = new long[m_last.depth + 1];
+            for(int d = 1; d <= m_last.depth; d++)
+                millis[d] = m_last.iterationNanos[d] / 1000000;
+            return millis;
+        }
+        
+        public boolean isEnabled() { return m_enabled; }
+        public void setEnabled(boolean enabled) { m_enabled = enabled; }
+    }
+    
+    /// A JDK Flight Recorder event committed once per searched move
+    @jdk.jfr.Name("chess.Search")
+    @jdk.jfr.Label("Search")
+    @jdk.jfr.Category("AlphaBetaPruningChess")
+    @jdk.jfr.Description("One computer move: nodes, depth and pruning statistics")
+    static class SearchEvent extends jdk.jfr.Event
+    {
+        @jdk.jfr.Label("Player") String player;
+        @jdk.jfr.Label("Best Move") String bestMove;
+        @jdk.jfr.Label("Value") int value;
+        @jdk.jfr.Label("Principal Variation") String pv;
+        @jdk.jfr.Label("Depth") int depth;
+        @jdk.jfr.Label("Threads") int threads;
+        @jdk.jfr.Label("Nodes") long nodes;
+        @jdk.jfr.Label("Nodes Per Second") long nodesPerSecond;
+        @jdk.jfr.Label("Leaf Evaluations") long leafEvaluations;
+        @jdk.jfr.Label("Beta Cutoffs") long betaCutoffs;
+        @jdk.jfr.Label("First Move Cutoff Rate") @jdk.jfr.Percentage double firstMoveCutoffRate;
+        @jdk.jfr.Label("Table Hit Rate") @jdk.jfr.Percentage double tableHitRate;
+        @jdk.jfr.Label("Effective Branching Factor") double effectiveBranchingFactor;
+    }
+    
+    /// How long or how deep a search may go. A value of 0 means no limit, except
+    /// for depth which always applies.
+    static class SearchLimits
+    {
+        int depth = MAX_PLY - 1;
+        long moveTime;  // milliseconds for this move
+        long whiteTime; // milliseconds left on white's clock
+        long blackTime; // milliseconds left on black's clock
+        long whiteIncrement;
+        long blackIncrement;
+        long nodes;
+        volatile boolean ponder; // searching on the opponent's time: no time limit until ponderhit
+        
+        /// Returns how many milliseconds the side to move should spend, or 0 for no time limit
+        long moveBudgetMillis(boolean white)
+        {
+            long clock = white ? whiteTime : blackTime;
+            long increment = white ? whiteIncrement : blackIncrement;
+            long budget = moveTime;
+            if(clock > 0)
+            {
+                //plan for about 30 more moves, spend most of the increment, and never
+                //use more than a third of what is left
+                long planned = clock / 30 + increment * 3 / 4;
+                planned = Math.max(1, Math.min(planned, clock / 3));
+                budget = (budget > 0) ? Math.min(budget, planned) : planned;
+            }
+            return budget;
+        }
+    }
+    
+    /// What a search found: the best move (NO_MOVE if there are no moves), its
+    /// value from the point of view of the side to move, and the principal
+    /// variation, the line both sides are expected to play from here.
+    static class SearchResult
+    {
+        int bestMove = NO_MOVE;
+        int score;
+        int depth; // deepest completed iteration
+        int[] pv = new int[0];
+        long nodes;
+        SearchStats stats = new SearchStats(); // all threads' counters, if the search collected them
+        
+        /// Returns the principal variation as moves separated by spaces
+        String pvString()
+        {
+            StringBuilder sb = new StringBuilder();
+            for(int m : pv)
+            {
+                if(sb.length() > 0)
+                    sb.append(' ');
+                sb.append(moveToString(m));
+            }
+            return sb.toString();
+        }
+    }
+    
+    /*
+     * Searches one ply deeper at a time until the depth limit is reached or the
+     * time or node budget runs out. Each iteration starts with the best move of
+     * the one before it. Returns the result of the last completed iteration.
+     */
+    static SearchResult iterativeDeepening(ChessState currentState, SearchContext context, boolean whitePlayer, SearchLimits limits) throws Exception
+    {
+        context.start(limits, whitePlayer);
+        for(int depth = 1; depth <= limits.depth; depth++)
+        {
+            int value = aspirationSearch(currentState, context, depth, whitePlayer);
+            if(context.stopped())
+                break;
+            context.completeIteration(depth, value);
+            if(context.m_iterationListener != null)
+                context.m_iterationListener.accept(context.result());
+            if(context.m_collectStats)
+            {
+                long nodesBefore = 0;
+                long nanosBefore = 0;
+                for(int d = 1; d < depth; d++)
+                {
+                    nodesBefore += context.m_stats.iterationNodes[d];
+                    nanosBefore += context.m_stats.iterationNanos[d];
+                }
+                context.m_stats.iterationNodes[depth] = context.m_nodes - nodesBefore;
+                context.m_stats.iterationNanos[depth] = System.nanoTime() - context.m_startTime - nanosBefore;
+            }
+            if(context.m_bestMove == NO_MOVE || System.nanoTime() >= context.m_softDeadline)
+                break;
+        }
+        context.m_stats.nodes = context.m_nodes;
+        context.m_stats.depth = context.m_completedDepth;
+        context.m_stats.elapsedNanos = System.nanoTime() - context.m_startTime;
+        return context.result();
+    }
+    
+    /*
+     * Searches the root to the specified depth. Once there is a value from an
+     * earlier iteration to go by, the search starts with a narrow (aspiration)
+     * window around it, which cuts off more of the tree. If the value falls
+     * outside the window, the window is widened on that side and the root is
+     * searched again.
+     */
+    static int aspirationSearch(ChessState currentState, SearchContext context, int depth, boolean whitePlayer) throws Exception
+    {
+        int delta = ASPIRATION_WINDOW;
+        int alpha = -INFINITY;
+        int beta = INFINITY;
+        if(depth >= ASPIRATION_MIN_DEPTH && context.m_completedDepth > 0)
+        {
+            alpha = Math.max(context.m_bestValue - delta, -INFINITY);
+            beta = Math.min(context.m_bestValue + delta, INFINITY);
+        }
+        while(true)
+        {
+            int value = alphaBeta(currentState, context, 0, depth, alpha, beta, whitePlayer, false);
+            if(context.stopped())
+                return value;
+            if(value <= alpha && alpha > -INFINITY)
+                alpha = (value <= -WIN_THRESHOLD) ? -INFINITY : Math.max(value - delta, -INFINITY);
+            else if(value >= beta && beta < INFINITY)
+                beta = (value >= WIN_THRESHOLD) ? INFINITY : Math.min(value + delta, INFINITY);
+            else
+                return value;
+            delta *= 2;
+        }
+    }
+    
+    /*
+     * Lazy SMP: several threads search the same position at the same time and
+     * share one transposition table, so each thread picks up what the others
+     * have already worked out. Every thread has its own board and SearchContext.
+     * The main thread keeps the time limits and its result is the one played;
+     * helper threads run until the main thread is done and then stop.
+     */
+    static class ParallelSearch
+    {
+        SearchContext[] m_contexts; // [0] belongs to the calling thread
+        ExecutorService m_pool;     // helper threads, null if there is only one thread
+        SearchStats m_stats = new SearchStats(); // all threads' statistics for the last search
+        SearchMonitor m_monitor;    // may be null
+        String m_name = "search";   // used to label monitoring output
+        
+        ParallelSearch(TranspositionTable table, int threads)
+        {
+            m_contexts = new SearchContext[threads];
+            for(int i = 0; i < threads; i++)
+            {
+                m_contexts[i] = new SearchContext(table);
+                m_contexts[i].m_helper = (i > 0);
+            }
+            if(threads > 1)
+            {
+                m_pool = Executors.newFixedThreadPool(threads - 1, r -> {
+                    Thread t = new Thread(r, "search-helper");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        }
+        
+        SearchContext mainContext()
+        {
+            return m_contexts[0];
+        }
+        
+        /// Sets the evaluation noise for every thread; all threads must agree so
+        /// that the values they share through the table are consistent
+        void setJitter(boolean enabled, long seed)
+        {
+            for(SearchContext context : m_contexts)
+            {
+                context.m_jitter = enabled;
+                context.m_jitterSeed = seed;
+            }
+        }
+        
+        /// Turns statistics counting on or off for every thread
+        void setCollectStats(boolean enabled)
+        {
+            for(SearchContext context : m_contexts)
+                context.m_collectStats = enabled;
+        }
+        
+        /// Applies the command line's search switches to every thread
+        void configure(Options options)
+        {
+            for(SearchContext context : m_contexts)
+                options.configure(context);
+        }
+        
+        /// Forgets everything learned from earlier searches: the table and every thread's move ordering
+        void newGame()
+        {
+            if(mainContext().m_table != null)
+                mainContext().m_table.clear();
+            for(SearchContext context : m_contexts)
+                context.clearHistory();
+        }
+        
+        /// Returns the total number of nodes all threads searched during the last search
+        long nodes()
+        {
+            long nodes = 0;
+            for(SearchContext context : m_contexts)
+                nodes += context.m_nodes;
+            return nodes;
+        }
+        
+        /// Searches with all threads and returns the main thread's result
+        SearchResult search(ChessState currentState, boolean white, SearchLimits limits) throws Exception
+        {
+            ArrayList<Future<?>> helpers = new ArrayList<Future<?>>();
+            for(int i = 1; i < m_contexts.length; i++)
+            {
+                SearchContext helper = m_contexts[i];
+                ChessState board = new ChessState(currentState);
+                int startDepth = 1 + (i & 1); // odd helpers stay one ply ahead of the rest
+                helper.m_stop = false;
+                helpers.add(m_pool.submit(() -> {
+                    helperSearch(board, helper, white, startDepth, limits.depth);
+                    return null;
+                }));
+            }
+            if(m_monitor != null)
+                setCollectStats(m_monitor.isEnabled());
+            SearchEvent event = new SearchEvent();
+            event.begin();
+            SearchResult result;
+            try
+            {
+                result = iterativeDeepening(currentState, m_contexts[0], white, limits);
+            }
+            finally
+            {
+                for(int i = 1; i < m_contexts.length; i++)
+                    m_contexts[i].stop();
+                for(Future<?> f : helpers)
+                    f.get();
+            }
+            event.end();
+            
+            //add up the threads' statistics and publish them
+            m_stats.copy(m_contexts[0].m_stats);
+            for(int i = 1; i < m_contexts.length; i++)
+                m_stats.add(m_contexts[i].m_stats);
+            if(m_monitor != null && m_monitor.isEnabled())
+                m_monitor.publish(m_stats);
+            if(event.shouldCommit())
+            {
+                event.player = m_name;
+                event.bestMove = moveToString(result.bestMove);
+                event.value = result.score;
+                event.pv = result.pvString();
+                event.depth = m_stats.depth;
+                event.threads = m_contexts.length;
+                event.nodes = m_stats.nodes;
+                event.nodesPerSecond = m_stats.nodesPerSecond();
+                event.leafEvaluations = m_stats.leafEvaluations;
+                event.betaCutoffs = m_stats.betaCutoffs;
+                event.firstMoveCutoffRate = m_stats.firstMoveCutoffRate() / 100;
+                event.tableHitRate = m_stats.tableHitRate() / 100;
+                event.effectiveBranchingFactor = m_stats.effectiveBranchingFactor(m_stats.depth);
+                event.commit();
+            }
+            result.nodes = nodes();
+            result.stats.copy(m_stats);
+            return result;
+        }
+        
+        void shutdown()
+        {
+            if(m_pool != null)
+                m_pool.shutdownNow();
+            if(mainContext().m_table != null)
+                mainContext().m_table.flush();
+        }
+    }
+    
+    /*
+     * The search as a self-contained service: an engine owns its threads,
+     * transposition table and every thread's scratch state, so any number of
+     * engines can search at the same time in one JVM, one per game or
+     * analysis session. The caller passes a position and limits and gets a
+     * SearchResult back, either directly or through a CompletableFuture. The
+     * position is copied first, so the caller is free to change it while the
+     * search runs. Searches on one engine take turns; searches on different
+     * engines share nothing.
+     *
+     * Asynchronous searches wait in the engine's own queue, and only one task
+     * at a time is on the executor to run it, so searches waiting for each
+     * other never hold up a pool thread. Every search gets its own cancel flag when it is issued,
+     * which stop() and cancelling the future set. A stop therefore reaches a
+     * search that hasn't started yet, and never one issued after it.
+     */
+    static class SearchEngine implements AutoCloseable
+    {
+        ParallelSearch m_search; // the lock held by the search running on it
+        Executor m_executor; // runs searchAsync
+        
+        // guarded by m_queue
+        ArrayDeque<QueuedSearch> m_queue = new ArrayDeque<QueuedSearch>(); // asynchronous searches waiting their turn
+        boolean m_draining; // a task on the executor is working through the queue
+        ArrayList<AtomicBoolean> m_unfinished = new ArrayList<AtomicBoolean>(); // cancel flags of the searches stop() reaches
+        
+        /// An engine configured by the command line options. Asynchronous
+        /// searches run on the common fork/join pool, so that hundreds of
+        /// sessions share one thread per processor.
+        SearchEngine(Options options, String name) throws Exception
+        {
+            this(options, name, ForkJoinPool.commonPool());
+        }
+        
+        SearchEngine(Options options, String name, Executor executor) throws Exception
+        {
+            m_search = new ParallelSearch(TranspositionTable.open(options.hashMegabytes, options.hashFile), options.threads);
+            m_search.m_name = name;
+            m_search.setJitter(options.jitter, options.seed);
+            m_search.setCollectStats(options.stats);
+            m_search.configure(options);
+            if(options.stats)
+                m_search.m_monitor = SearchMonitor.register(name);
+            m_executor = executor;
+        }
+        
+        /// Searches the position with the specified side to move, on the calling
+        /// thread, and returns the result
+        SearchResult search(ChessState position, boolean white, SearchLimits limits) throws Exception
+        {
+            return run(new ChessState(position), white, limits, issue());
+        }
+        
+        /// Queues a search of the position on the engine's executor. Cancelling
+        /// the future stops the search, or drops it if it hasn't started. If the
+        /// executor won't take the work, the future fails with its exception.
+        CompletableFuture<SearchResult> searchAsync(ChessState position, boolean white, SearchLimits limits)
+        {
+            QueuedSearch search = new QueuedSearch(new ChessState(position), white, limits, issue());
+            search.future.whenComplete((result, e) -> {
+                if(search.future.isCancelled())
+                    search.cancel.set(true);
+            });
+            enqueue(search);
+            return search.future;
+        }
+        
+        /// Asks every search issued so far, running or queued, to stop and return
+        /// what it has. A search that hasn't started yet still finishes its first
+        /// iteration, so there is a move. Searches issued later aren't affected.
+        void stop()
+        {
+            synchronized(m_queue)
+            {
+                for(AtomicBoolean cancel : m_unfinished)
+                    cancel.set(true);
+            }
+        }
+        
+        /// Forgets everything learned from earlier searches. Waits for the search
+        /// in progress, if there is one.
+        void newGame()
+        {
+            synchronized(m_search)
+            {
+                m_search.newGame();
+            }
+        }
+        
+        /// Gives a new search its cancel flag
+        AtomicBoolean issue()
+        {
+            AtomicBoolean cancel = new AtomicBoolean();
+            synchronized(m_queue)
+            {
+                m_unfinished.add(cancel);
+            }
+            return cancel;
+        }
+        
+        void finished(AtomicBoolean cancel)
+        {
+            synchronized(m_queue)
+            {
+                m_unfinished.remove(cancel);
+            }
+        }
+        
+        SearchResult run(ChessState board, boolean white, SearchLimits limits, AtomicBoolean cancel) throws Exception
+        {
+            try
+            {
+                synchronized(m_search)
+                {
+                    m_search.mainContext().m_cancel = cancel;
+                    try
+                    {
+                        return m_search.search(board, white, limits);
+                    }
+                    finally
+                    {
+                        m_search.mainContext().m_cancel = null;
+                    }
+                }
+            }
+            finally
+            {
+                finished(cancel);
+            }
+        }
+        
+        /// An asynchronous search waiting for its turn, with the future its caller holds
+        class QueuedSearch
+        {
+            ChessState board; // the engine's own copy
+            boolean white;
+            SearchLimits limits;
+            AtomicBoolean cancel;
+            CompletableFuture<SearchResult> future = new CompletableFuture<SearchResult>();
+            
+            QueuedSearch(ChessState board, boolean white, SearchLimits limits, AtomicBoolean cancel)
+            {
+                this.board = board;
+                this.white = white;
+                this.limits = limits;
+                this.cancel = cancel;
+            }
+            
+            void runSearch()
+            {
+                if(future.isDone())
+                {
+                    finished(cancel); // cancelled while it waited
+                    return;
+                }
+                try
+                {
+                    future.complete(run(board, white, limits, cancel));
+                }
+                catch(Throwable e)
+                {
+                    future.completeExceptionally(e);
+                }
+            }
+            
+            void fail(Throwable e)
+            {
+                finished(cancel);
+                future.completeExceptionally(e);
+            }
+        }
+        
+        /// Adds an asynchronous search to the queue, and puts a task on the
+        /// executor to run it unless one is already working through the queue
+        void enqueue(QueuedSearch search)
+        {
+            synchronized(m_queue)
+            {
+                m_queue.add(search);
+                if(m_draining)
+                    return;
+                m_draining = true;
+            }
+            dispatch();
+        }
+        
+        /// Runs the oldest queued search, then hands the rest of the queue to a
+        /// new task, so that other work on the executor gets a turn in between
+        void runNext()
+        {
+            QueuedSearch search;
+            synchronized(m_queue)
+            {
+                search = m_queue.poll();
+                if(search == null)
+                {
+                    m_draining = false;
+                    return;
+                }
+            }
+            search.runSearch();
+            dispatch();
+        }
+        
+        /// Puts a task on the executor to run the next queued search. If the
+        /// executor refuses it, nothing would ever run the queue again, so every
+        /// search in it fails with the executor's exception.
+        void dispatch()
+        {
+            try
+            {
+                m_executor.execute(this::runNext);
+            }
+            catch(RuntimeException e)
+            {
+                ArrayList<QueuedSearch> refused;
+                synchronized(m_queue)
+                {
+                    refused = new ArrayList<QueuedSearch>(m_queue);
+                    m_queue.clear();
+                    m_draining = false;
+                }
+                for(QueuedSearch search : refused)
+                    search.fail(e);
+            }
+        }
+        
+        boolean collectsStats()
+        {
+            return m_search.mainContext().m_collectStats;
+        }
+        
+        public void close() throws Exception
+        {
+            m_search.shutdown();
+            if(m_search.m_monitor != null)
+                m_search.m_monitor.unregister();
+        }
+    }
+    
+    /// Helper thread loop for a parallel search. It has no limits of its own and
+    /// runs until it reaches maxDepth or is stopped; its results only reach the
+    /// main thread through the shared transposition table.
+    static void helperSearch(ChessState currentState, SearchContext context, boolean whitePlayer, int startDepth, int maxDepth) throws Exception
+    {
+        context.start(new SearchLimits(), whitePlayer);
+        for(int depth = startDepth; depth <= maxDepth && !context.m_stop; depth++)
+        {
+            int value = aspirationSearch(currentState, context, depth, whitePlayer);
+            if(!context.m_stop)
+                context.completeIteration(depth, value);
+        }
+        context.m_stats.nodes = context.m_nodes;
+    }
+    
+    /*
+     * Principal variation search in negamax form: values are from the point of
+     * view of the side to move, so a position that is worth v to one player is
+     * worth -v to the other. Only the first move at each node is searched with
+     * the full window; the rest are searched with a zero window, which only
+     * shows whether they are better than the first, and are searched again with
+     * the full window if they are. The best line found is kept in the context's
+     * triangular PV table.
+     */
+    static int alphaBeta(ChessState currentState, SearchContext context, int ply, int depthRemaining, int alpha, int beta, boolean whitePlayer, boolean gameOver) throws Exception
+    {
+        int bestMove = NO_MOVE;
+        context.m_pvLength[ply] = ply;
+        
+        //every so often check whether the search has to stop; depth 1 always finishes
+        if((++context.m_nodes & 1023) == 0 && context.m_completedDepth > 0)
+            context.checkLimits();
+        if(context.stopped())
+            return 0;
+        
+        //check to see if game is over or the desired depth has been reached
+        if(gameOver)
+            return -(WIN_SCORE - ply); // the side to move has lost its king
+        
+        //a position seen before on this path or in the game is a draw: whoever
+        //could do better would have done it the first time round
+        if(ply > 0 && (currentState.m_reversiblePlies >= context.m_drawPlies || currentState.isRepetition()))
+            return DRAW_SCORE;
+        if(depthRemaining == 0 && !context.m_quiescence)
+        {
+            if(context.m_collectStats)
+                context.m_stats.leafEvaluations++;
+            return context.evaluate(currentState, whitePlayer);
+        }
+        
+        //with few pieces left the tablebases know the result
+        if(ply > 0 && context.m_tablebases != null)
+        {
+            int score = context.probeTablebases(currentState, whitePlayer, ply);
+            if(score != Tablebases.UNKNOWN)
+                return score;
+        }
+        
+        //at the horizon, keep going through captures until the position is quiet
+        if(depthRemaining == 0)
+        {
+            context.m_nodes--; // counted again by quiescence
+            return quiescence(currentState, context, ply, 0, alpha, beta, whitePlayer);
+        }
+        
+        //a zero window only asks whether the value is above alpha; anything
+        //wider is on the principal variation
+        boolean pvNode = beta - alpha > 1;
+        
+        //look for a stored result from the same position, reached by any move order
+        TranspositionTable table = context.m_table;
+        long key = currentState.hashKey(whitePlayer);
+        int hashMove = NO_MOVE;
+        int alphaOrig = alpha;
+        if(table != null)
+        {
+            long entry = table.probe(key);
+            if(context.m_collectStats)
+            {
+                context.m_stats.tableProbes++;
+                if(entry != 0)
+                    context.m_stats.tableHits++;
+            }
+            if(entry != 0)
+            {
+                hashMove = TranspositionTable.move(entry);
+                //a cutoff on the principal variation would cut the line short
+                if(!pvNode && ply > 0 && TranspositionTable.depth(entry) >= depthRemaining)
+                {
+                    int score = scoreFromTable(TranspositionTable.score(entry), ply);
+                    int bound = TranspositionTable.bound(entry);
+                    if(bound == TranspositionTable.BOUND_EXACT
+                        || (bound == TranspositionTable.BOUND_LOWER && score >= beta)
+                        || (bound == TranspositionTable.BOUND_UPPER && score <= alpha))
+                        return score;
+                }
+            }
+        }
+        
+        //selective search, never on the principal variation or when the king is under attack
+        boolean threatened = currentState.kingAttacked(whitePlayer);
+        boolean selective = !pvNode && ply > 0 && !threatened;
+        int staticEval = selective ? context.evaluate(currentState, whitePlayer) : 0;
+        
+        //razoring: far below alpha near the horizon, only a capture could help
+        if(selective && context.m_futilityPruning && context.m_quiescence && depthRemaining < RAZOR_MARGIN.length
+            && staticEval + RAZOR_MARGIN[depthRemaining] <= alpha)
+        {
+            int value = quiescence(currentState, context, ply, 0, alpha, beta, whitePlayer);
+            if(context.stopped())
+                return 0;
+            if(value <= alpha)
+                return value;
+        }
+        
+        //null move pruning: if passing still beats beta, a real move almost certainly will too
+        if(selective && context.m_nullMovePruning && depthRemaining >= NULL_MOVE_MIN_DEPTH && staticEval >= beta
+            && context.m_verifying == 0 && !context.m_nullMovePlayed[ply - 1] && currentState.nonPawnMaterial(whitePlayer) > 0)
+        {
+            int reduction = depthRemaining > 6 ? 3 : 2;
+            context.m_nullMovePlayed[ply] = true;
+            currentState.makeNullMove(context.m_undo[ply]);
+            int value = -alphaBeta(currentState, context, ply + 1, depthRemaining - 1 - reduction, -beta, -beta + 1, !whitePlayer, false);
+            currentState.unmakeNullMove(context.m_undo[ply]);
+            context.m_nullMovePlayed[ply] = false;
+            if(context.stopped())
+                return 0;
+            if(value >= beta)
+            {
+                if(value >= WIN_THRESHOLD)
+                    value = beta; // a win found after passing isn't proven
+                if(currentState.nonPawnMaterial(whitePlayer) > NULL_MOVE_VERIFY_MATERIAL)
+                    return value;
+                context.m_verifying++;
+                value = alphaBeta(currentState, context, ply, depthRemaining - reduction, beta - 1, beta, whitePlayer, false);
+                context.m_verifying--;
+                if(context.stopped())
+                    return 0;
+                if(value >= beta)
+                    return value;
+            }
+        }
+        
+        //futility pruning: near the horizon, quiet moves can't lift a hopeless position up to alpha
+        boolean futile = selective && context.m_futilityPruning && depthRemaining < FUTILITY_MARGIN.length
+                         && staticEval + FUTILITY_MARGIN[depthRemaining] <= alpha;
+        int futilityValue = futile ? staticEval + FUTILITY_MARGIN[depthRemaining] : 0;
+        boolean reduce = context.m_lateMoveReductions && ply > 0 && !threatened && depthRemaining >= 3;
+        
+        //generate all valid moves into this ply's buffer
+        int moveCount = currentState.generateMoves(whitePlayer, context.m_moves[ply]);
+        UndoInfo undo = context.m_undo[ply];
+        
+        //order the moves so that the ones most likely to cause a cutoff come first
+        context.scoreMoves(ply, moveCount, hashMove, whitePlayer);
+        
+        context.m_pvLength[ply] = ply; // the verification search may have used it
+        int bestValue = -INFINITY;
+        for(int i = 0; i < moveCount; i++)
+        {
+            int m = context.nextMove(ply, i, moveCount);
+            boolean quiet = moveCaptured(m) == None && !isPromotion(m);
+            boolean gameOverCheck = currentState.makeMove(m, undo);
+            boolean attacking = quiet && (futile || reduce) && currentState.kingAttacked(!whitePlayer);
+            if(futile && quiet && i > 0 && !attacking)
+            {
+                currentState.unmakeMove(m, undo);
+                bestValue = Math.max(bestValue, futilityValue);
+                continue;
+            }
+            
+            int value;
+            if(i == 0)
+                value = -alphaBeta(currentState, context, ply + 1, depthRemaining - 1, -beta, -alpha, !whitePlayer, gameOverCheck);
+            else
+            {
+                //late quiet moves are searched less deeply first
+                int reduction = (reduce && quiet && !attacking && i >= LMR_MIN_MOVES && context.m_scores[ply][i] < KILLER_SCORE)
+                                ? lateMoveReduction(depthRemaining, i) : 0;
+                value = -alphaBeta(currentState, context, ply + 1, depthRemaining - 1 - reduction, -alpha - 1, -alpha, !whitePlayer, gameOverCheck);
+                if(value > alpha && reduction > 0)
+                    value = -alphaBeta(currentState, context, ply + 1, depthRemaining - 1, -alpha - 1, -alpha, !whitePlayer, gameOverCheck);
+                if(value > alpha && value < beta)
+                    value = -alphaBeta(currentState, context, ply + 1, depthRemaining - 1, -beta, -alpha, !whitePlayer, gameOverCheck);
+            }
+            currentState.unmakeMove(m, undo);
+            if(context.stopped())
+                return 0;
+            
+            if(value > bestValue)
+            {
+                bestValue = value;
+                if(value > alpha)
+                {
+                    alpha = value;
+                    bestMove = m;
+                    context.updatePv(ply, m);
+                }
+            }
+            
+            if(alpha >= beta)
+            {
+                context.recordCutoff(ply, m, i, depthRemaining, whitePlayer);
+                break;
+            }
+        }
+        
+        if(table != null)
+            storeResult(table, key, ply, depthRemaining, bestValue, bestMove, alphaOrig, beta);
+        if(ply == 0)
+            context.m_rootMove = bestMove;
+        return bestValue;
+    }
+    
+    /// How many plies to take off the index'th move at this depth, leaving at least one
+    static int lateMoveReduction(int depthRemaining, int index)
+    {
+        int reduction = LMR_REDUCTIONS[Math.min(depthRemaining, MAX_PLY - 1)][Math.min(index, MAX_MOVES - 1)];
+        return Math.min(reduction, depthRemaining - 2);
+    }
+    
+    /*
+     * Quiescence search: below the horizon only captures and promotions are
+     * searched, so the evaluation is never taken in the middle of an exchange.
+     * The side to move may "stand pat" on the static evaluation instead of
+     * capturing, unless its king is under attack, in which case every move is
+     * tried (near the horizon; depth counts the plies past it). Captures that can't bring the score back up to alpha even with a
+     * margin (delta pruning) and captures that lose material according to
+     * static exchange evaluation are skipped. Values are from the point of view
+     * of the side to move, as in alphaBeta.
+     */
+    static int quiescence(ChessState currentState, SearchContext context, int ply, int depth, int alpha, int beta, boolean whitePlayer)
+    {
+        context.m_pvLength[ply] = ply;
+        if((++context.m_nodes & 1023) == 0 && context.m_completedDepth > 0)
+            context.checkLimits();
+        if(context.stopped())
+            return 0;
+        if(context.m_tablebases != null)
+        {
+            int score = context.probeTablebases(currentState, whitePlayer, ply);
+            if(score != Tablebases.UNKNOWN)
+                return score;
+        }
+        
+        int standPat = context.evaluate(currentState, whitePlayer);
+        if(context.m_collectStats)
+            context.m_stats.leafEvaluations++;
+        if(ply >= MAX_PLY - 1)
+            return standPat;
+        
+        boolean threatened = depth < QUIESCENCE_EVASION_PLIES && currentState.kingAttacked(whitePlayer);
+        int bestValue = -INFINITY;
+        if(!threatened)
+        {
+            if(standPat >= beta)
+                return standPat;
+            alpha = Math.max(alpha, standPat);
+            bestValue = standPat;
+        }
+        
+        int moveCount = threatened ? currentState.generateMoves(whitePlayer, context.m_moves[ply])
+                                   : currentState.generateCaptures(whitePlayer, context.m_moves[ply]);
+        context.scoreMoves(ply, moveCount, NO_MOVE, whitePlayer);
+        UndoInfo undo = context.m_undo[ply];
+        for(int i = 0; i < moveCount; i++)
+        {
+            int m = context.nextMove(ply, i, moveCount);
+            if(!threatened && moveCaptured(m) != King)
+            {
+                //delta pruning: even winning this piece for free can't reach alpha
+                int gain = PIECE_VALUES[moveCaptured(m)] + (isPromotion(m) ? PIECE_VALUES[Queen] - PIECE_VALUES[Pawn] : 0) + DELTA_MARGIN;
+                if(standPat + gain <= alpha)
+                    continue;
+                //skip captures that lose material
+                if(!currentState.seeAtLeast(m, 0))
+                    continue;
+            }
+            int value;
+            if(currentState.makeMove(m, undo))
+            {
+                value = WIN_SCORE - (ply + 1);
+                context.m_pvLength[ply + 1] = ply + 1; // the line ends with this move
+            }
+            else
+                value = -quiescence(currentState, context, ply + 1, depth + 1, -beta, -alpha, !whitePlayer);
+            currentState.unmakeMove(m, undo);
+            if(context.stopped())
+                return 0;
+            if(value > bestValue)
+            {
+                bestValue = value;
+                if(value > alpha)
+                {
+                    alpha = value;
+                    context.updatePv(ply, m);
+                }
+            }
+            if(alpha >= beta)
+                break;
+        }
+        return bestValue;
+    }
+    
+    /// Stores a search result along with whether it is exact or only a bound
+    static void storeResult(TranspositionTable table, long key, int ply, int depth, int value, int move, int alphaOrig, int betaOrig)
+    {
+        int bound;
+        if(value <= alphaOrig)
+            bound = TranspositionTable.BOUND_UPPER;
+        else if(value >= betaOrig)
+            bound = TranspositionTable.BOUND_LOWER;
+        else
+            bound = TranspositionTable.BOUND_EXACT;
+        table.store(key, depth, bound, scoreToTable(value, ply), move);
+    }
+    
+    /// Win and loss values count plies from the root, but a stored value has to
+    /// hold wherever the position turns up again, so it is stored counting from
+    /// the position itself
+    static int scoreToTable(int value, int ply)
+    {
+        if(value >= WIN_THRESHOLD)
+            return value + ply;
+        if(value <= -WIN_THRESHOLD)
+            return value - ply;
+        return value;
+    }
+    
+    static int scoreFromTable(int value, int ply)
+    {
+        if(value >= WIN_THRESHOLD)
+            return value - ply;
+        if(value <= -WIN_THRESHOLD)
+            return value + ply;
+        return value;
+    }
+    
+    /// Describes a search value, spelling out wins and losses
+    static String scoreToString(int value)
+    {
+        if(value >= WIN_THRESHOLD)
+            return "win in " + (WIN_SCORE - value) + " plies";
+        if(value <= -WIN_THRESHOLD)
+            return "loss in " + (WIN_SCORE + value) + " plies";
+        return Integer.toString(value);
+    }
+    
+    /*
+     * Lets a computer player pick its move: plays from the opening book if the
+     * position is in it, and otherwise searches up to maxDepth plies within
+     * the time and node limits, then charges the time used to the player's clock.
+     * A clock that drops below zero means the player lost on time.
+     */
+    static int computerMove(ChessState currentState, SearchEngine engine, OpeningBook book, boolean white, int maxDepth, SearchLimits limits) throws Exception
+    {
+        //in the opening, play from the book without searching
+        int bookMove = (book != null) ? book.probe(currentState, white) : NO_MOVE;
+        if(bookMove != NO_MOVE)
+        {
+            System.out.println((white ? "White" : "Black") + " plays " + moveToString(bookMove) + " from the book");
+            if(white && limits.whiteTime > 0)
+                limits.whiteTime += limits.whiteIncrement;
+            if(!white && limits.blackTime > 0)
+                limits.blackTime += limits.blackIncrement;
+            return bookMove;
+        }
+        
+        limits.depth = maxDepth;
+        SearchResult result = engine.search(currentState, white, limits);
+        long elapsed = result.stats.elapsedNanos / 1000000;
+        if(engine.collectsStats())
+            System.out.println((white ? "White" : "Black") + " searched " + result.depth + " plies, " + result.stats.summary());
+        else
+            System.out.println((white ? "White" : "Black") + " searched " + result.depth + " plies, "
+                               + result.nodes + " nodes in " + elapsed + " ms");
+        System.out.println("value " + scoreToString(result.score) + ", expecting " + result.pvString());
+        if(white && limits.whiteTime > 0)
+            limits.whiteTime = (limits.whiteTime - elapsed < 0) ? -1 : limits.whiteTime - elapsed + limits.whiteIncrement;
+        if(!white && limits.blackTime > 0)
+            limits.blackTime = (limits.blackTime - elapsed < 0) ? -1 : limits.blackTime - elapsed + limits.blackIncrement;
+        return result.bestMove;
+    }
+    
+    /*
+     * An opening book: a file of (hash key, move, weight) entries sorted by key,
+     * behind a 16 byte header. The file is memory-mapped rather than read, so
+     * opening a book costs nothing however large it is, and a lookup is a
+     * binary search over the mapped entries that touches only a few pages.
+     * All the moves stored for a position are candidates, picked at random in
+     * proportion to their weights.
+     */
+    static class OpeningBook
+    {
+        static final long MAGIC = 0x4348455353424b31L; // "CHESSBK1"
+        static final int HEADER_SIZE = 16; // magic, entry count
+        static final int ENTRY_SIZE = 16;  // key, move, weight
+        
+        MappedByteBuffer m_entries;
+        int m_count;
+        Random m_random = new Random();
+        
+        OpeningBook(Path path) throws IOException
+        {
+            try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+            {
+                long size = channel.size();
+                if(size < HEADER_SIZE || size > Integer.MAX_VALUE || (size - HEADER_SIZE) % ENTRY_SIZE != 0)
+                    throw new IOException(path + " is not an opening book");
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                if(buffer.getLong(0) != MAGIC || buffer.getLong(8) != (size - HEADER_SIZE) / ENTRY_SIZE)
+                    throw new IOException(path + " is not an opening book");
+                m_entries = buffer;
+                m_count = (int)((size - HEADER_SIZE) / ENTRY_SIZE);
+            }
+        }
+        
+        long key(int index)
+        {
+            return m_entries.getLong(HEADER_SIZE + index * ENTRY_SIZE);
+        }
+        
+        int move(int index)
+        {
+            return m_entries.getInt(HEADER_SIZE + index * ENTRY_SIZE + 8);
+        }
+        
+        int weight(int index)
+        {
+            return m_entries.getInt(HEADER_SIZE + index * ENTRY_SIZE + 12);
+        }
+        
+        /// Returns the index of the first entry whose key is not below key
+        int lowerBound(long key)
+        {
+            int low = 0;
+            int high = m_count;
+            while(low < high)
+            {
+                int mid = (low + high) >>> 1;
+                if(key(mid) < key)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+        
+        /// Picks one of the book moves for this position at random, weighted by
+        /// how often it was played, or returns NO_MOVE if the position isn't in
+        /// the book. Moves that can't be played here (a hash collision) are ignored.
+        int probe(ChessState currentState, boolean white, Random rand)
+        {
+            long key = currentState.hashKey(white);
+            int first = lowerBound(key);
+            int[] moves = new int[MAX_MOVES];
+            int count = currentState.generateMoves(white, moves);
+            long total = 0;
+            int last = first;
+            for(; last < m_count && key(last) == key; last++)
+            {
+                if(contains(moves, count, move(last)))
+                    total += weight(last);
+            }
+            if(total == 0)
+                return NO_MOVE;
+            long pick = (long)(rand.nextDouble() * total);
+            for(int i = first; i < last; i++)
+            {
+                if(!contains(moves, count, move(i)))
+                    continue;
+                pick -= weight(i);
+                if(pick < 0)
+                    return move(i);
+            }
+            return NO_MOVE;
+        }
+        
+        int probe(ChessState currentState, boolean white)
+        {
+            return probe(currentState, white, m_random);
+        }
+        
+        /// Prints the book moves for this position with their weights
+        void print(ChessState currentState, boolean white, PrintStream out)
+        {
+            long key = currentState.hashKey(white);
+            int entries = 0;
+            for(int i = lowerBound(key); i < m_count && key(i) == key; i++, entries++)
+                out.println(moveToString(move(i)) + " " + weight(i));
+            if(entries == 0)
+                out.println("position not in book");
+        }
+        
+        static boolean contains(int[] moves, int count, int move)
+        {
+            for(int i = 0; i < count; i++)
+            {
+                if(moves[i] == move)
+                    return true;
+            }
+            return false;
+        }
+    }
+    
+    /*
+     * Collects the opening moves of many games and writes them as an opening
+     * book. Each position gets the moves that were played from it, weighted by
+     * the number of games that played them. Only the first m_plies moves of a
+     * game are used, and positions played in fewer than m_minGames games are
+     * left out.
+     */
+    static class BookBuilder
+    {
+        HashMap<Long, HashMap<Integer, Integer>> m_counts = new HashMap<Long, HashMap<Integer, Integer>>();
+        int m_plies = 20;
+        int m_minGames = 1;
+        int m_games;
+        
+        /// Adds the move played in a position
+        void add(long key, int move)
+        {
+            m_counts.computeIfAbsent(key, k -> new HashMap<Integer, Integer>()).merge(move, 1, Integer::sum);
+        }
+        
+        /// Adds a game given as moves in coordinate notation, stopping at the
+        /// first move that isn't valid
+        void addLine(String line)
+        {
+            ChessState s = new ChessState();
+            boolean white = true;
+            int ply = 0;
+            for(String text : line.trim().split("\\s+"))
+            {
+                if(text.isEmpty())
+                    continue;
+                if(ply++ >= m_plies || !play(s, s.parseMove(text, white), white))
+                    break;
+                white = !white;
+            }
+            m_games++;
+        }
+        
+        /// Adds a game given as moves in standard algebraic notation
+        void addSanGame(ArrayList<String> sanMoves)
+        {
+            if(sanMoves.isEmpty())
+                return;
+            ChessState s = new ChessState();
+            boolean white = true;
+            for(int ply = 0; ply < sanMoves.size() && ply < m_plies; ply++)
+            {
+                if(!play(s, s.parseSan(sanMoves.get(ply), white), white))
+                    break;
+                white = !white;
+            }
+            m_games++;
+        }
+        
+        /// Records and plays one move; returns false if the game can't go on
+        boolean play(ChessState s, int move, boolean white)
+        {
+            if(move == NO_MOVE)
+                return false;
+            add(s.hashKey(white), move);
+            return !s.makeMove(move, new UndoInfo());
+        }
+        
+        /*
+         * Reads the games of a PGN file: tag pairs, comments, variations,
+         * numeric annotations and move numbers are skipped, and a result
+         * ("1-0", "0-1", "1/2-1/2" or "*") or the tags of the next game end a game.
+         */
+        void addPgn(Path path) throws IOException
+        {
+            ArrayList<String> game = new ArrayList<String>();
+            int commentDepth = 0;   // inside { }
+            int variationDepth = 0; // inside ( )
+            try(BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.ISO_8859_1))
+            {
+                String line;
+                while((line = reader.readLine()) != null)
+                {
+                    if(commentDepth == 0 && line.startsWith("["))
+                    {
+                        addSanGame(game);
+                        game.clear();
+                        continue;
+                    }
+                    StringBuilder token = new StringBuilder();
+                    for(int i = 0; i <= line.length(); i++)
+                    {
+                        char c = i < line.length() ? line.charAt(i) : ' ';
+                        if(commentDepth > 0)
+                        {
+                            if(c == '}')
+                                commentDepth--;
+                            continue;
+                        }
+                        if(c == '{' || c == ';' || c == '(' || c == ')' || Character.isWhitespace(c))
+                        {
+                            String t = token.toString();
+                            token.setLength(0);
+                            if(variationDepth == 0 && !t.isEmpty())
+                            {
+                                if(t.equals("1-0") || t.equals("0-1") || t.equals("1/2-1/2") || t.equals("*"))
+                                {
+                                    addSanGame(game);
+                                    game.clear();
+                                }
+                                else if(t.charAt(0) != '$' && !Character.isDigit(t.charAt(0)))
+                                    game.add(t);
+                                else if(Character.isDigit(t.charAt(0)) && t.indexOf('.') >= 0 && !t.endsWith("."))
+                                    game.add(t.substring(t.lastIndexOf('.') + 1)); // "1.e4"
+                            }
+                            if(c == '{')
+                                commentDepth++;
+                            else if(c == ';')
+                                break; // the rest of the line is a comment
+                            else if(c == '(')
+                                variationDepth++;
+                            else if(c == ')')
+                                variationDepth = Math.max(0, variationDepth - 1);
+                        }
+                        else
+                            token.append(c);
+                    }
+                }
+            }
+            addSanGame(game);
+        }
+        
+        /// Adds a file of games, PGN if its name ends in .pgn and otherwise one
+        /// game per line in coordinate notation
+        void addFile(Path path) throws IOException
+        {
+            if(path.toString().toLowerCase().endsWith(".pgn"))
+            {
+                addPgn(path);
+                return;
+            }
+            try(BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.ISO_8859_1))
+            {
+                String line;
+                while((line = reader.readLine()) != null)
+                {
+                    if(!line.trim().isEmpty() && !line.startsWith("#"))
+                        addLine(line);
+                }
+            }
+        }
+        
+        /*
+         * Plays games between two computer players to build a book of the
+         * engine's own choices. Each game uses a different evaluation noise
+         * seed so the games branch apart, and stops after m_plies moves.
+         */
+        void addSelfPlay(int games, int depth, long seed, PrintStream out) throws Exception
+        {
+            TranspositionTable table = new TranspositionTable(16);
+            SearchContext context = new SearchContext(table);
+            SearchLimits limits = new SearchLimits();
+            limits.depth = depth;
+            for(int game = 0; game < games; game++)
+            {
+                ChessState s = new ChessState();
+                StringBuilder line = new StringBuilder();
+                boolean white = true;
+                context.m_jitterSeed = seed + game;
+                table.clear();
+                for(int ply = 0; ply < m_plies; ply++)
+                {
+                    int move = iterativeDeepening(s, context, white, limits).bestMove;
+                    if(move == NO_MOVE)
+                        break;
+                    line.append(moveToString(move)).append(' ');
+                    if(s.makeMove(move, new UndoInfo()))
+                        break;
+                    white = !white;
+                }
+                addLine(line.toString());
+                if(out != null)
+                    out.println(line.toString().trim());
+            }
+        }
+        
+        /// Writes the book, sorted by key so that it can be binary searched
+        int write(Path path) throws IOException
+        {
+            ArrayList<Long> keys = new ArrayList<Long>();
+            for(Map.Entry<Long, HashMap<Integer, Integer>> position : m_counts.entrySet())
+            {
+                int games = 0;
+                for(int count : position.getValue().values())
+                    games += count;
+                if(games >= m_minGames)
+                    keys.add(position.getKey());
+            }
+            Collections.sort(keys);
+            int entries = 0;
+            for(long key : keys)
+                entries += m_counts.get(key).size();
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path))))
+            {
+                out.writeLong(OpeningBook.MAGIC);
+                out.writeLong(entries);
+                for(long key : keys)
+                {
+                    for(Map.Entry<Integer, Integer> move : m_counts.get(key).entrySet())
+                    {
+                        out.writeLong(key);
+                        out.writeInt(move.getKey());
+                        out.writeInt(move.getValue());
+                    }
+                }
+            }
+            return entries;
+        }
+    }
+    
+    /*
+     * Endgame tablebases: for every position with few enough pieces, the number
+     * of plies until a king is taken when both sides play perfectly. A value d
+     * means the side to move takes the other king in d plies if d is odd, and
+     * loses its own in d plies if d is even; 0 means neither side can force a
+     * win. Each material balance, such as "KQKR" (white's pieces, then black's),
+     * has its own file of one byte per position after a 16 byte header (magic,
+     * position count). The files are memory-mapped. Only one color arrangement
+     * of each balance is stored; the other is looked up with the board flipped
+     * and the colors swapped.
+     */
+    static class Tablebases
+    {
+        static final long MAGIC = 0x4348455353544231L; // "CHESSTB1"
+        static final int HEADER_SIZE = 16;
+        static final int MAX_PIECES = 4;
+        static final int UNKNOWN = Integer.MIN_VALUE;
+        
+        /// Piece types in the order they are listed in table names, and their letters
+        static final int[] NAME_ORDER = { Queen, Rook, Bishop, Knight, Pawn };
+        static final String LETTERS = " PRNBQK"; // indexed by piece type
+        
+        /// Squares the white king is moved to by symmetry: the a1-d1-d4 triangle
+        /// without pawns, otherwise the a-d files
+        static final int[] TRIANGLE = { 0, 1, 2, 3, 9, 10, 11, 18, 19, 27 };
+        static final int[] KING_INDEX_NO_PAWNS = new int[64];
+        static final int[] KING_INDEX_PAWNS = new int[64];
+        
+        static
+        {
+            Arrays.fill(KING_INDEX_NO_PAWNS, -1);
+            Arrays.fill(KING_INDEX_PAWNS, -1);
+            for(int i = 0; i < TRIANGLE.length; i++)
+                KING_INDEX_NO_PAWNS[TRIANGLE[i]] = i;
+            for(int sq = 0; sq < 64; sq++)
+            {
+                if((sq & 7) < 4)
+                    KING_INDEX_PAWNS[sq] = (sq >> 3) * 4 + (sq & 7);
+            }
+        }
+        
+        /// One material balance
+        static class Table
+        {
+            String m_name;
+            int[] m_pieces; // nibbles in index order: white king, black king, white's other pieces, black's
+            boolean m_pawns;
+            int m_kingSquares;
+            int m_size;     // positions, both sides to move
+            MappedByteBuffer m_data;
+            
+            Table(String name)
+            {
+                m_name = name;
+                int blackKing = name.indexOf('K', 1);
+                m_pieces = new int[name.length()];
+                m_pieces[0] = King | WhiteMask;
+                m_pieces[1] = King;
+                int n = 2;
+                for(int i = 1; i < name.length(); i++)
+                {
+                    if(i == blackKing)
+                        continue;
+                    int type = LETTERS.indexOf(name.charAt(i));
+                    m_pieces[n++] = type | (i < blackKing ? WhiteMask : 0);
+                    if(type == Pawn)
+                        m_pawns = true;
+                }
+                m_kingSquares = m_pawns ? 32 : TRIANGLE.length;
+                m_size = 2 * m_kingSquares * (1 << (6 * (m_pieces.length - 1)));
+            }
+            
+            /*
+             * Returns the index of a position given by the square of each piece
+             * (in m_pieces order). The board is first turned so that the white
+             * king is on one of the squares that have an index. If the king is
+             * then on the a1-h8 diagonal, the board and its mirror image in that
+             * diagonal are the same position, and the smaller index of the two
+             * is used. The squares are changed in place.
+             */
+            int index(int[] squares, boolean whiteToMove)
+            {
+                int king = squares[0];
+                int flip = ((king & 7) > 3 ? 7 : 0);
+                if(!m_pawns)
+                    flip |= ((king >> 3) > 3 ? 56 : 0);
+                for(int i = 0; i < m_pieces.length; i++)
+                    squares[i] ^= flip;
+                int side = whiteToMove ? 0 : 1;
+                if(m_pawns)
+                    return rawIndex(squares, side);
+                king = squares[0];
+                if((king >> 3) > (king & 7))
+                {
+                    transpose(squares, m_pieces.length);
+                    return rawIndex(squares, side);
+                }
+                int plain = rawIndex(squares, side);
+                if((king >> 3) < (king & 7))
+                    return plain;
+                transpose(squares, m_pieces.length);
+                return Math.min(plain, rawIndex(squares, side));
+            }
+            
+            /// Index of squares as they are, with identical pieces put in order
+            int rawIndex(int[] squares, int side)
+            {
+                for(int i = 3; i < m_pieces.length; i++)
+                {
+                    if(m_pieces[i] == m_pieces[i - 1] && squares[i] < squares[i - 1])
+                    {
+                        int sq = squares[i];
+                        squares[i] = squares[i - 1];
+                        squares[i - 1] = sq;
+                    }
+                }
+                int index = side * m_kingSquares + (m_pawns ? KING_INDEX_PAWNS[squares[0]] : KING_INDEX_NO_PAWNS[squares[0]]);
+                for(int i = 1; i < m_pieces.length; i++)
+                    index = index * 64 + squares[i];
+                return index;
+            }
+            
+            static void transpose(int[] squares, int count)
+            {
+                for(int i = 0; i < count; i++)
+                    squares[i] = ((squares[i] & 7) << 3) | (squares[i] >> 3);
+            }
+            
+            /// The reverse of index(): fills squares and returns true iff white is to move
+            boolean squares(int index, int[] squares)
+            {
+                for(int i = m_pieces.length - 1; i > 0; i--)
+                {
+                    squares[i] = index & 63;
+                    index >>>= 6;
+                }
+                int king = index % m_kingSquares;
+                squares[0] = m_pawns ? (king / 4) * 8 + (king % 4) : TRIANGLE[king];
+                return index / m_kingSquares == 0;
+            }
+            
+            /// Finds the square of each piece on a board with this material,
+            /// flipping the board and swapping the colors if asked to
+            void squaresOf(ChessState board, boolean flip, int[] squares)
+            {
+                long taken = 0;
+                for(int i = 0; i < m_pieces.length; i++)
+                {
+                    long b = board.m_pieces[flip ? m_pieces[i] ^ WhiteMask : m_pieces[i]] & ~taken;
+                    int sq = Long.numberOfTrailingZeros(b);
+                    taken |= 1L << sq;
+                    squares[i] = flip ? sq ^ 56 : sq;
+                }
+            }
+            
+            int value(int index)
+            {
+                return m_data.get(HEADER_SIZE + index) & 0xff;
+            }
+        }
+        
+        /// Tables by material key, along with whether to flip the board to use them
+        Table[] m_byMaterial = new Table[59049];
+        boolean[] m_flip = new boolean[59049];
+        int m_maxPieces;
+        int m_count;
+        
+        /// Maps every table file (*.tb) in a directory
+        Tablebases(Path directory) throws IOException
+        {
+            if(!Files.isDirectory(directory))
+                throw new IOException(directory + " is not a directory");
+            try(java.nio.file.DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.tb"))
+            {
+                for(Path file : files)
+                    add(file);
+            }
+        }
+        
+        /// Maps a table file and makes it available to probes
+        void add(Path file) throws IOException
+        {
+            String name = file.getFileName().toString();
+            name = name.substring(0, name.length() - 3);
+            if(!name.matches("K[QRBNP]*K[QRBNP]*") || name.length() > MAX_PIECES)
+                throw new IOException(file + " is not a tablebase");
+            Table table = new Table(name);
+            try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+            {
+                if(channel.size() != HEADER_SIZE + (long)table.m_size)
+                    throw new IOException(file + " is not a tablebase");
+                table.m_data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if(table.m_data.getLong(0) != MAGIC || table.m_data.getLong(8) != table.m_size)
+                    throw new IOException(file + " is not a tablebase");
+            }
+            int key = materialKey(table, false);
+            m_byMaterial[key] = table;
+            m_flip[key] = false;
+            int flippedKey = materialKey(table, true);
+            if(flippedKey != key)
+            {
+                m_byMaterial[flippedKey] = table;
+                m_flip[flippedKey] = true;
+            }
+            m_maxPieces = Math.max(m_maxPieces, table.m_pieces.length);
+            m_count++;
+        }
+        
+        /// Each color's count of each piece type, as base 3 digits
+        static int materialKey(Table table, boolean flip)
+        {
+            int key = 0;
+            for(int i = 2; i < table.m_pieces.length; i++)
+            {
+                int nibble = flip ? table.m_pieces[i] ^ WhiteMask : table.m_pieces[i];
+                key += POWERS_OF_3[(nibble >> 3) * 5 + (nibble & PieceMask) - 1];
+            }
+            return key;
+        }
+        
+        static int materialKey(ChessState board)
+        {
+            int key = 0;
+            for(int color = 0; color < 2; color++)
+            {
+                for(int type = Pawn; type <= Queen; type++)
+                    key += Long.bitCount(board.m_pieces[type | (color << 3)]) * POWERS_OF_3[color * 5 + type - 1];
+            }
+            return key;
+        }
+        
+        static final int[] POWERS_OF_3 = { 1, 3, 9, 27, 81, 243, 729, 2187, 6561, 19683 };
+        
+        /// Returns the position's table value (see above), or -1 if there is no
+        /// table for it. squares is scratch space for MAX_PIECES squares.
+        int distance(ChessState board, boolean whiteToMove, int[] squares)
+        {
+            int pieces = Long.bitCount(board.m_colors[0] | board.m_colors[1]);
+            if(pieces > Math.max(m_maxPieces, 2) || board.m_pieces[King] == 0 || board.m_pieces[King | WhiteMask] == 0)
+                return -1;
+            if(pieces == 2)
+            {
+                //kings side by side: the side to move takes the other one; otherwise neither can get close
+                long whiteKing = board.m_pieces[King | WhiteMask];
+                return (KING_ATTACKS[Long.numberOfTrailingZeros(whiteKing)] & board.m_pieces[King]) != 0 ? 1 : 0;
+            }
+            int key = materialKey(board);
+            Table table = m_byMaterial[key];
+            if(table == null)
+                return -1;
+            boolean flip = m_flip[key];
+            table.squaresOf(board, flip, squares);
+            return table.value(table.index(squares, whiteToMove != flip));
+        }
+        
+        /// Returns the search value of the position at ply, or UNKNOWN if it isn't in the tablebases
+        int probe(ChessState board, boolean whiteToMove, int ply, int[] squares)
+        {
+            int d = distance(board, whiteToMove, squares);
+            if(d < 0)
+                return UNKNOWN;
+            if(d == 0)
+                return 0;
+            return (d & 1) != 0 ? WIN_SCORE - (ply + d) : -(WIN_SCORE - (ply + d));
+        }
+    }
+    
+    /*
+     * Builds tablebases by retrograde analysis. Positions where the side to
+     * move can take the king are won in 1. Then, one ply at a time, a position
+     * is won in d if a move leads to a position lost in d - 1, and lost in d if
+     * every move leads to a position won in at most d - 1. The candidates at
+     * each ply are found by taking moves back from the positions decided at the
+     * ply before, so only a few positions are looked at more than once. Captures
+     * and promotions lead to other tables, which are built first; their results
+     * are worked out once per position at the start. Each pass is split across
+     * a thread pool.
+     */
+    static class TablebaseGenerator
+    {
+        static final int EXIT_NONE = 0;   // no captures or promotions
+        static final int EXIT_DRAW = 255; // the best capture or promotion draws
+        static final int MAX_DISTANCE = 254;
+        
+        Tablebases m_tablebases; // the tables finished so far
+        Path m_directory;
+        ExecutorService m_pool;
+        int m_chunks;
+        PrintStream m_out;
+        
+        // the table being built
+        Tablebases.Table m_table;
+        byte[] m_values;
+        byte[] m_exits;
+        
+        TablebaseGenerator(Path directory, int threads, PrintStream out) throws IOException
+        {
+            Files.createDirectories(directory);
+            m_directory = directory;
+            m_tablebases = new Tablebases(directory);
+            m_pool = Executors.newFixedThreadPool(threads);
+            m_chunks = threads * 16;
+            m_out = out;
+        }
+        
+        /// Names every material balance with up to maxPieces pieces, each in one
+        /// color arrangement (the stronger side white), in an order where captures
+        /// and promotions only lead to tables that come earlier
+        static ArrayList<String> tableNames(int maxPieces)
+        {
+            ArrayList<String> sides = new ArrayList<String>();
+            sides.add("");
+            for(int i = 0; i < Tablebases.NAME_ORDER.length; i++)
+            {
+                sides.add("" + Tablebases.LETTERS.charAt(Tablebases.NAME_ORDER[i]));
+                for(int j = i; j < Tablebases.NAME_ORDER.length; j++)
+                    sides.add("" + Tablebases.LETTERS.charAt(Tablebases.NAME_ORDER[i]) + Tablebases.LETTERS.charAt(Tablebases.NAME_ORDER[j]));
+            }
+            ArrayList<String> names = new ArrayList<String>();
+            for(String white : sides)
+            {
+                for(String black : sides)
+                {
+                    int pieces = 2 + white.length() + black.length();
+                    if(pieces < 3 || pieces > maxPieces || compareSides(white, black) < 0)
+                        continue;
+                    if(white.equals(black) || !names.contains("K" + black + "K" + white))
+                        names.add("K" + white + "K" + black);
+                }
+            }
+            names.sort((a, b) -> a.length() != b.length() ? a.length() - b.length() : pawns(a) - pawns(b));
+            return names;
+        }
+        
+        /// Orders the two sides of a table by material, then by name
+        static int compareSides(String a, String b)
+        {
+            int difference = material(a) - material(b);
+            return difference != 0 ? difference : a.compareTo(b);
+        }
+        
+        static int material(String side)
+        {
+            int total = 0;
+            for(int i = 0; i < side.length(); i++)
+                total += PIECE_VALUES[Tablebases.LETTERS.indexOf(side.charAt(i))];
+            return total;
+        }
+        
+        static int pawns(String name)
+        {
+            return name.length() - name.replace("P", "").length();
+        }
+        
+        /// Builds every table with up to maxPieces pieces that isn't in the directory yet
+        void generateAll(int maxPieces) throws Exception
+        {
+            try
+            {
+                for(String name : tableNames(maxPieces))
+                {
+                    Path file = m_directory.resolve(name + ".tb");
+                    if(Files.exists(file))
+                        continue;
+                    generate(name, file);
+                    m_tablebases.add(file);
+                }
+            }
+            finally
+            {
+                m_pool.shutdown();
+            }
+        }
+        
+        /// Runs a pass over every position, split into chunks across the pool,
+        /// and returns how many positions the pass decided
+        long pass(PassBody body) throws Exception
+        {
+            ArrayList<Future<Long>> parts = new ArrayList<Future<Long>>();
+            int size = m_table.m_size;
+            for(int c = 0; c < m_chunks; c++)
+            {
+                int start = (int)((long)size * c / m_chunks);
+                int end = (int)((long)size * (c + 1) / m_chunks);
+                parts.add(m_pool.submit(() -> body.run(new Worker(), start, end)));
+            }
+            long total = 0;
+            for(Future<Long> part : parts)
+                total += part.get();
+            return total;
+        }
+        
+        interface PassBody
+        {
+            long run(Worker worker, int start, int end) throws Exception;
+        }
+        
+        void generate(String name, Path file) throws Exception
+        {
+            long startTime = System.nanoTime();
+            m_table = new Tablebases.Table(name);
+            m_values = new byte[m_table.m_size];
+            m_exits = new byte[m_table.m_size];
+            
+            //wins in 1 and the results of captures and promotions
+            long decided = pass((worker, start, end) -> {
+                long n = 0;
+                for(int index = start; index < end; index++)
+                    n += worker.initialize(index);
+                return n;
+            });
+            int maxExit = maxExit();
+            int longest = 1;
+            for(int d = 2; d <= MAX_DISTANCE; d++)
+            {
+                int distance = d;
+                long found = pass((worker, start, end) -> {
+                    long n = 0;
+                    for(int index = start; index < end; index++)
+                        n += worker.extend(index, distance);
+                    return n;
+                });
+                decided += found;
+                if(found > 0)
+                    longest = d;
+                else if(d >= maxExit)
+                    break; // nothing left to take moves back from, and no capture or promotion decides later
+            }
+            
+            //write the table with its header
+            ByteBuffer header = ByteBuffer.allocate(Tablebases.HEADER_SIZE);
+            header.putLong(Tablebases.MAGIC).putLong(m_table.m_size).flip();
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            try(FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                channel.write(header);
+                ByteBuffer data = ByteBuffer.wrap(m_values);
+                while(data.hasRemaining())
+                    channel.write(data);
+            }
+            Files.move(temporary, file, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            m_out.println(String.format("%-6s %10d positions, %10d decided, longest win %3d plies, %6d ms",
+                                        name, m_table.m_size, decided, longest, (System.nanoTime() - startTime) / 1000000));
+            m_values = null;
+            m_exits = null;
+        }
+        
+        /// The longest distance that a capture or promotion decides a position at
+        int maxExit()
+        {
+            int max = 0;
+            for(byte e : m_exits)
+            {
+                int exit = e & 0xff;
+                if(exit != EXIT_DRAW)
+                    max = Math.max(max, exit);
+            }
+            return max;
+        }
+        
+        /// Scratch space for one thread. The second board is for checking the
+        /// positions found by taking moves back while the first one is in use.
+        class Worker
+        {
+            ChessState m_board = emptyBoard();
+            ChessState m_other = emptyBoard();
+            int[] m_squares = new int[Tablebases.MAX_PIECES];
+            int[] m_scratch = new int[Tablebases.MAX_PIECES];
+            int[] m_moves = new int[MAX_MOVES];
+            UndoInfo m_undo = new UndoInfo();
+            
+            /// Sets up a board for an index; returns false if the position can't happen
+            boolean setUp(ChessState board, int index)
+            {
+                Tablebases.Table table = m_table;
+                table.squares(index, m_scratch);
+                long occupied = 0;
+                for(int i = 0; i < table.m_pieces.length; i++)
+                {
+                    int sq = m_scratch[i];
+                    if((occupied & (1L << sq)) != 0)
+                        return false;
+                    if((table.m_pieces[i] & PieceMask) == Pawn && ((sq >> 3) == 0 || (sq >> 3) == 7))
+                        return false;
+                    occupied |= 1L << sq;
+                }
+                for(long b = board.m_colors[0] | board.m_colors[1]; b != 0; b &= b - 1)
+                    board.setSquare(Long.numberOfTrailingZeros(b), None);
+                for(int i = 0; i < table.m_pieces.length; i++)
+                    board.setSquare(m_scratch[i], table.m_pieces[i]);
+                return true;
+            }
+            
+            /// Index of a board in the table being built
+            int indexOf(ChessState board, boolean whiteToMove)
+            {
+                m_table.squaresOf(board, false, m_squares);
+                return m_table.index(m_squares, whiteToMove);
+            }
+            
+            /// Decides wins in 1 and works out the best capture or promotion.
+            /// Indexes that the board is never turned to are left out.
+            int initialize(int index)
+            {
+                boolean white = index < m_table.m_size / 2;
+                if(!setUp(m_board, index) || indexOf(m_board, white) != index)
+                    return 0;
+                int count = m_board.generateMoves(white, m_moves);
+                int best = EXIT_NONE;
+                for(int i = 0; i < count; i++)
+                {
+                    int m = m_moves[i];
+                    if(moveCaptured(m) == King)
+                    {
+                        m_values[index] = 1;
+                        return 1;
+                    }
+                    if(moveCaptured(m) == None && !isPromotion(m))
+                        continue;
+                    m_board.makeMove(m, m_undo);
+                    int d = m_tablebases.distance(m_board, !white, m_squares);
+                    m_board.unmakeMove(m, m_undo);
+                    if(d < 0)
+                        throw new IllegalStateException("no table for a capture or promotion from " + m_table.m_name);
+                    best = better(best, d == 0 ? EXIT_DRAW : d + 1);
+                }
+                m_exits[index] = (byte)best;
+                return 0;
+            }
+            
+            /// Decides the positions at distance d that this index leads to: the
+            /// positions a move back from it, if it was decided at d - 1, and the
+            /// position itself if its captures and promotions decide it at d
+            int extend(int index, int d)
+            {
+                int value = m_values[index] & 0xff;
+                if(value == d - 1)
+                {
+                    setUp(m_board, index);
+                    return unmoves(index >= m_table.m_size / 2, d);
+                }
+                if(value == 0 && (m_exits[index] & 0xff) == d && ((d & 1) != 0 || lost(index, d)))
+                {
+                    m_values[index] = (byte)d;
+                    return 1;
+                }
+                return 0;
+            }
+            
+            /// Takes back each move the mover could have made to reach the board,
+            /// and decides the positions before them at distance d where possible
+            int unmoves(boolean mover, int d)
+            {
+                int n = 0;
+                long occupied = m_board.m_colors[0] | m_board.m_colors[1];
+                for(long b = m_board.m_colors[mover ? 1 : 0]; b != 0; b &= b - 1)
+                {
+                    int to = Long.numberOfTrailingZeros(b);
+                    int nibble = m_board.getSquare(to);
+                    long origins;
+                    switch(nibble & PieceMask)
+                    {
+                        case Pawn:
+                        {
+                            //a pawn came from one square back, or two from its starting row
+                            int back = mover ? -8 : 8;
+                            int row = to >> 3;
+                            origins = 0;
+                            if(mover ? row >= 2 : row <= 5)
+                            {
+                                origins = 1L << (to + back);
+                                if(row == (mover ? 3 : 4) && ((1L << (to + back)) & occupied) == 0)
+                                    origins |= 1L << (to + 2 * back);
+                            }
+                            break;
+                        }
+                        case Rook: origins = rookAttacks(to, occupied); break;
+                        case Knight: origins = KNIGHT_ATTACKS[to]; break;
+                        case Bishop: origins = bishopAttacks(to, occupied); break;
+                        case Queen: origins = rookAttacks(to, occupied) | bishopAttacks(to, occupied); break;
+                        default: origins = KING_ATTACKS[to]; break;
+                    }
+                    for(long o = origins & ~occupied; o != 0; o &= o - 1)
+                    {
+                        int from = Long.numberOfTrailingZeros(o);
+                        m_board.setSquare(to, None);
+                        m_board.setSquare(from, nibble);
+                        int parent = indexOf(m_board, mover);
+                        m_board.setSquare(from, None);
+                        m_board.setSquare(to, nibble);
+                        if(m_values[parent] == 0 && ((d & 1) != 0 || lost(parent, d)))
+                        {
+                            m_values[parent] = (byte)d;
+                            n++;
+                        }
+                    }
+                }
+                return n;
+            }
+            
+            /// Returns true iff every move from the position leads to a loss for
+            /// the side to move in at most d plies
+            boolean lost(int index, int d)
+            {
+                int exit = m_exits[index] & 0xff;
+                if(exit == EXIT_DRAW || (exit & 1) != 0 || exit > d)
+                    return false;
+                setUp(m_other, index);
+                boolean white = index < m_table.m_size / 2;
+                for(long b = m_other.m_colors[white ? 1 : 0]; b != 0; b &= b - 1)
+                {
+                    int from = Long.numberOfTrailingZeros(b);
+                    int piece = m_other.getSquare(from) & PieceMask;
+                    for(long t = m_other.targets(from); t != 0; t &= t - 1)
+                    {
+                        int to = Long.numberOfTrailingZeros(t);
+                        if(m_other.getSquare(to) != None || (piece == Pawn && ((to >> 3) == 0 || (to >> 3) == 7)))
+                            continue; // captures and promotions were counted in the exit
+                        int m = packMove(from, to, piece, None, false);
+                        m_other.makeMove(m, m_undo);
+                        int child = m_values[indexOf(m_other, !white)] & 0xff;
+                        m_other.unmakeMove(m, m_undo);
+                        if((child & 1) == 0 || child > d - 1)
+                            return false;
+                    }
+                }
+                return true;
+            }
+        }
+        
+        static ChessState emptyBoard()
+        {
+            ChessState board = new ChessState();
+            board.removeAll(true);
+            board.removeAll(false);
+            return board;
+        }
+        
+        /// The better of two capture or promotion results for the side moving
+        static int better(int a, int b)
+        {
+            if(a == EXIT_NONE)
+                return b;
+            boolean aWins = (a & 1) != 0 && a != EXIT_DRAW;
+            boolean bWins = (b & 1) != 0 && b != EXIT_DRAW;
+            if(aWins || bWins)
+                return (aWins && bWins) ? Math.min(a, b) : (aWins ? a : b);
+            if(a == EXIT_DRAW || b == EXIT_DRAW)
+                return EXIT_DRAW;
+            return Math.max(a, b); // both lose: hold out longest
+        }
+    }
+    
+    /*
+     * The book tool: "book build <book> <files...>" builds a book from PGN files
+     * or files of move lines, "book selfplay <book> [games] [depth]" builds one
+     * from the engine's own games, and "book show <book>" lists the book moves
+     * for the starting position (or the position after -moves).
+     */
+    static void runBook(ArrayList<String> positional, Options options, PrintStream out) throws Exception
+    {
+        if(positional.size() < 3)
+            throw new Exception("usage: book build|selfplay|show <book> ...");
+        String command = positional.get(1);
+        Path path = Paths.get(positional.get(2));
+        if("show".equals(command))
+        {
+            OpeningBook book = new OpeningBook(path);
+            ChessState s = new ChessState();
+            boolean white = s.playMoves(options.moves, true);
+            out.println(book.m_count + " entries");
+            book.print(s, white, out);
+            return;
+        }
+        
+        BookBuilder builder = new BookBuilder();
+        builder.m_plies = options.bookPlies;
+        builder.m_minGames = options.bookMinGames;
+        if("build".equals(command))
+        {
+            for(int i = 3; i < positional.size(); i++)
+                builder.addFile(Paths.get(positional.get(i)));
+        }
+        else if("selfplay".equals(command))
+        {
+            int games = positional.size() >= 4 ? Integer.parseInt(positional.get(3)) : 100;
+            int depth = positional.size() >= 5 ? Integer.parseInt(positional.get(4)) : 6;
+            builder.addSelfPlay(games, depth, options.seed, out);
+        }
+        else
+            throw new Exception("unknown book command " + command);
+        int entries = builder.write(path);
+        out.println("wrote " + entries + " entries for " + builder.m_counts.size() + " positions from " + builder.m_games + " games to " + path);
+    }
+    
+    /// Plays a match between the engine settings in -a and -b, each searching
+    /// to its own depth, and prints the games as they finish
+    static void runMatch(ArrayList<String> positional, Options options, PrintStream out) throws Exception
+    {
+        int depthA = Integer.parseInt(positional.get(1));
+        int depthB = Integer.parseInt(positional.get(2));
+        if(depthA < 1 || depthA >= MAX_PLY || depthB < 1 || depthB >= MAX_PLY)
+            throw new Exception("depths must be between 1 and " + (MAX_PLY - 1));
+        Options a = Options.parse(options.engineA.trim().isEmpty() ? new String[0] : options.engineA.trim().split("\\s+"));
+        Options b = Options.parse(options.engineB.trim().isEmpty() ? new String[0] : options.engineB.trim().split("\\s+"));
+        if(!a.positional.isEmpty() || !b.positional.isEmpty())
+            throw new Exception("engine settings may only contain options");
+        Match match = new Match(a, depthA, b, depthB, out);
+        match.m_games = positional.size() >= 4 ? Integer.parseInt(positional.get(3)) : 1000;
+        match.m_threads = options.threadsGiven ? options.threads : Runtime.getRuntime().availableProcessors();
+        match.m_seed = options.seed;
+        match.m_openingPlies = options.openingPlies;
+        match.m_maxPlies = options.maxPlies;
+        match.m_drawPlies = options.drawPlies;
+        match.m_elo0 = options.elo0;
+        match.m_elo1 = options.elo1;
+        if(options.book != null)
+            match.m_book = new OpeningBook(Paths.get(options.book));
+        if(options.json != null)
+            match.m_json = Paths.get(options.json);
+        try(PrintStream csv = (options.csv != null) ? new PrintStream(Files.newOutputStream(Paths.get(options.csv)), false, "UTF-8") : null)
+        {
+            match.m_csv = csv;
+            match.run();
+        }
+    }
+    
+    /// Positions used by the benchmarks, as moves played from the starting position
+    static final String[] BENCH_POSITIONS = {
+        "",
+        "e2e4 e7e5 g1f3 b8c6 f1c4 g8f6",
+        "d2d4 d7d5 c2c4 e7e6 b1c3 g8f6 c1g5 f8e7",
+        "e2e4 c7c5 g1f3 d7d6 d2d4 c5d4 f3d4 g8f6 b1c3 a7a6",
+        "e2e4 e7e5 g1f3 b8c6 f1b5 a7a6 b5c6 d7c6 d2d4 e5d4 d1d4 d8d4 f3d4",
+        "d2d4 g8f6 c2c4 g7g6 b1c3 f8g7 e2e4 d7d6 g1f3 b8d7 f1e2 e7e5",
+    };
+    
+    /*
+     * Headless engine-vs-engine match between two sets of engine settings, A
+     * and B. Games are played concurrently, one per pool thread, and come in
+     * pairs that start from the same opening with the colors swapped, so
+     * neither side gains from a lucky opening. Everything random about a game
+     * comes from the match seed and the game's number, so a match played to
+     * fixed depths or node counts gives the same games whatever the number of
+     * threads. A game is adjudicated a draw once both engines have called the
+     * position level for a while, or when it gets too long; it is adjudicated
+     * a win once both engines agree that a king is lost. Each finished game is
+     * added as a CSV row, and the JSON summary is rewritten with the new Elo
+     * estimate. A sequential probability ratio test (SPRT) of elo0 against
+     * elo1 ends the match as soon as the result is clear.
+     */
+    static class Match
+    {
+        static final double SPRT_ALPHA = 0.05; // chance of accepting elo1 when elo0 is true
+        static final double SPRT_BETA = 0.05;  // chance of accepting elo0 when elo1 is true
+        static final int DRAW_MIN_PLY = 80;    // no draw adjudication before this ply
+        static final int LEVEL_SCORE = 3;      // a value this close to 0 counts as level
+        static final int DRAW_PLIES = 10;      // for this many plies in a row
+        static final int OPENING_BALANCE = 20; // a random opening may favor one side by at most this much
+        static final int OPENING_CHECK_DEPTH = 4; // according to a search this deep
+        static final int OPENING_TRIES = 100;
+        
+        // settings for each engine, and the depth each searches to
+        Options m_a;
+        Options m_b;
+        int m_depthA;
+        int m_depthB;
+        
+        int m_games;
+        int m_threads;
+        long m_seed;
+        int m_openingPlies = 8;
+        int m_maxPlies = 400;
+        int m_drawPlies = DEFAULT_DRAW_PLIES;
+        OpeningBook m_book; // may be null
+        double m_elo0 = 0;
+        double m_elo1 = 5;
+        
+        PrintStream m_out;
+        PrintStream m_csv; // may be null
+        Path m_json;       // may be null
+        
+        // results so far, counted for A; guarded by this
+        int m_wins;
+        int m_losses;
+        int m_draws;
+        String m_status = "running";
+        AtomicInteger m_nextPair = new AtomicInteger();
+        volatile boolean m_finished;
+        
+        /// One side's search, reused from game to game by a pool thread
+        static class Player
+        {
+            Options m_options;
+            int m_depth;
+            SearchContext m_context;
+            SearchLimits m_limits;
+            
+            Player(Options options, int depth)
+            {
+                m_options = options;
+                m_depth = depth;
+                m_context = new SearchContext(new TranspositionTable(options.hashMegabytes));
+                m_context.m_collectStats = false;
+                m_context.m_jitter = options.jitter;
+                options.configure(m_context);
+            }
+            
+            /// Gets ready for a new game with a fresh table, move ordering and clock,
+            /// so the game doesn't depend on the games this thread played before
+            void newGame(long jitterSeed)
+            {
+                m_context.m_table.clear();
+                m_context.clearHistory();
+                m_context.m_jitterSeed = jitterSeed;
+                m_limits = m_options.limits();
+                m_limits.depth = m_depth;
+            }
+        }
+        
+        Match(Options a, int depthA, Options b, int depthB, PrintStream out)
+        {
+            m_a = a;
+            m_b = b;
+            m_depthA = depthA;
+            m_depthB = depthB;
+            m_out = out;
+        }
+        
+        /// Plays the match and prints the final summary
+        void run() throws Exception
+        {
+            if(m_csv != null)
+            {
+                m_csv.println("game,white,black,result,plies,reason,opening");
+                m_csv.flush();
+            }
+            m_out.println("A: depth " + m_depthA + describe(m_a));
+            m_out.println("B: depth " + m_depthB + describe(m_b));
+            m_out.println(m_games + " games on " + m_threads + " threads, seed " + m_seed + ", SPRT elo0 " + m_elo0 + " elo1 " + m_elo1);
+            ExecutorService pool = Executors.newFixedThreadPool(m_threads);
+            ArrayList<Future<?>> workers = new ArrayList<Future<?>>();
+            for(int i = 0; i < m_threads; i++)
+            {
+                workers.add(pool.submit(() -> {
+                    playPairs();
+                    return null;
+                }));
+            }
+            try
+            {
+                for(Future<?> f : workers)
+                    f.get();
+            }
+            finally
+            {
+                pool.shutdownNow();
+            }
+            m_out.println(summary());
+        }
+        
+        static String describe(Options options)
+        {
+            StringBuilder sb = new StringBuilder();
+            if(options.moveTime > 0)
+                sb.append(", ").append(options.moveTime).append(" ms per move");
+            if(options.clockTime > 0)
+                sb.append(", clock ").append(options.clockTime).append("+").append(options.increment).append(" ms");
+            if(options.nodes > 0)
+                sb.append(", ").append(options.nodes).append(" nodes");
+            if(!options.quiescence)
+                sb.append(", qsearch off");
+            if(!options.nullMovePruning)
+                sb.append(", nullmove off");
+            if(!options.lateMoveReductions)
+                sb.append(", lmr off");
+            if(!options.futilityPruning)
+                sb.append(", futility off");
+            if(options.tablebases != null)
+                sb.append(", tablebases");
+            return sb.toString();
+        }
+        
+        /// Pool thread loop: takes pairs of games until there are none left or the SPRT has decided
+        void playPairs() throws Exception
+        {
+            Player a = new Player(m_a, m_depthA);
+            Player b = new Player(m_b, m_depthB);
+            while(!m_finished)
+            {
+                int pair = m_nextPair.getAndIncrement();
+                if(2 * pair >= m_games)
+                    break;
+                String opening = opening(new Random(m_seed + pair));
+                for(int i = 0; i < 2 && 2 * pair + i < m_games && !m_finished; i++)
+                {
+                    int game = 2 * pair + i;
+                    boolean aWhite = (i == 0);
+                    long gameSeed = m_seed * 31 + game;
+                    a.newGame(gameSeed);
+                    b.newGame(gameSeed + 1);
+                    String[] result = play(opening, aWhite ? a : b, aWhite ? b : a);
+                    record(game, aWhite, result[0], Integer.parseInt(result[1]), result[2], opening);
+                }
+            }
+        }
+        
+        /*
+         * Makes up an opening: book moves while the book has any, then random
+         * moves up to m_openingPlies plies. Openings that a shallow search
+         * finds too good for one side are thrown away, so that the games test
+         * the engines rather than the dice.
+         */
+        String opening(Random rand) throws Exception
+        {
+            int[] moves = new int[MAX_MOVES];
+            UndoInfo undo = new UndoInfo();
+            SearchContext checker = new SearchContext();
+            checker.m_jitter = false;
+            checker.m_collectStats = false;
+            SearchLimits limits = new SearchLimits();
+            limits.depth = OPENING_CHECK_DEPTH;
+            String line = "";
+            for(int attempt = 0; attempt < OPENING_TRIES; attempt++)
+            {
+                ChessState s = new ChessState();
+                StringBuilder sb = new StringBuilder();
+                boolean white = true;
+                boolean inBook = (m_book != null);
+                int ply;
+                for(ply = 0; ply < m_openingPlies; ply++)
+                {
+                    int m = inBook ? m_book.probe(s, white, rand) : NO_MOVE;
+                    if(m == NO_MOVE)
+                    {
+                        inBook = false;
+                        int count = s.generateMoves(white, moves);
+                        if(count == 0)
+                            break;
+                        m = moves[rand.nextInt(count)];
+                    }
+                    if(s.makeMove(m, undo))
+                        break;
+                    sb.append(moveToString(m)).append(' ');
+                    white = !white;
+                }
+                line = sb.toString().trim();
+                if(ply == m_openingPlies && Math.abs(iterativeDeepening(s, checker, white, limits).score) <= OPENING_BALANCE)
+                    break;
+            }
+            return line;
+        }
+        
+        /*
+         * Plays one game from the opening. Returns the result ("1-0", "0-1" or
+         * "1/2-1/2"), the number of plies and the reason the game ended.
+         */
+        String[] play(String opening, Player whitePlayer, Player blackPlayer) throws Exception
+        {
+            ChessState s = new ChessState();
+            boolean white = s.playMoves(opening, true);
+            UndoInfo undo = new UndoInfo();
+            int ply = opening.isEmpty() ? 0 : opening.split(" ").length;
+            int level = 0;          // plies in a row that both engines called level
+            int previousScore = 0;  // the value the last mover gave, from its own point of view
+            for(;; ply++)
+            {
+                if(ply >= m_maxPlies)
+                    return new String[] { "1/2-1/2", Integer.toString(ply), "ply limit" };
+                Player player = white ? whitePlayer : blackPlayer;
+                SearchResult result = iterativeDeepening(s, player.m_context, white, player.m_limits);
+                
+                //charge the time used to the player's clock
+                SearchLimits limits = player.m_limits;
+                long elapsed = player.m_context.elapsedMillis();
+                long clock = white ? limits.whiteTime : limits.blackTime;
+                if(clock > 0)
+                {
+                    if(clock - elapsed < 0)
+                        return new String[] { white ? "0-1" : "1-0", Integer.toString(ply), "time forfeit" };
+                    clock = clock - elapsed + (white ? limits.whiteIncrement : limits.blackIncrement);
+                    if(white)
+                        limits.whiteTime = clock;
+                    else
+                        limits.blackTime = clock;
+                }
+                
+                if(result.bestMove == NO_MOVE)
+                    return new String[] { "1/2-1/2", Integer.toString(ply), "no moves" };
+                if(s.makeMove(result.bestMove, undo))
+                    return new String[] { white ? "1-0" : "0-1", Integer.toString(ply + 1), "king taken" };
+                String draw = s.drawReason(m_drawPlies);
+                if(draw != null)
+                    return new String[] { "1/2-1/2", Integer.toString(ply + 1), draw };
+                
+                //adjudication: both engines agree on the outcome
+                if(result.score >= WIN_THRESHOLD && -previousScore >= WIN_THRESHOLD)
+                    return new String[] { white ? "1-0" : "0-1", Integer.toString(ply + 1), "adjudicated win" };
+                level = (ply >= DRAW_MIN_PLY && Math.abs(result.score) <= LEVEL_SCORE) ? level + 1 : 0;
+                if(level >= DRAW_PLIES)
+                    return new String[] { "1/2-1/2", Integer.toString(ply + 1), "adjudicated draw" };
+                previousScore = result.score;
+                white = !white;
+            }
+        }
+        
+        /// Adds a finished game to the tally, the CSV and the JSON summary, and runs the SPRT
+        synchronized void record(int game, boolean aWhite, String result, int plies, String reason, String opening) throws IOException
+        {
+            if(m_finished)
+                return; // the SPRT stopped the match while this game was being played
+            boolean draw = result.equals("1/2-1/2");
+            boolean whiteWon = result.equals("1-0");
+            if(draw)
+                m_draws++;
+            else if(whiteWon == aWhite)
+                m_wins++;
+            else
+                m_losses++;
+            if(m_csv != null)
+            {
+                m_csv.println((game + 1) + "," + (aWhite ? "A,B," : "B,A,") + result + "," + plies + "," + reason + "," + opening);
+                m_csv.flush();
+            }
+            double llr = llr();
+            if(llr >= upperBound())
+            {
+                m_status = "H1 accepted";
+                m_finished = true;
+            }
+            else if(llr <= lowerBound())
+            {
+                m_status = "H0 accepted";
+                m_finished = true;
+            }
+            else if(m_wins + m_losses + m_draws >= m_games)
+                m_status = "inconclusive";
+            m_out.println(String.format("game %d: %s %s (%s), A %+d -%d =%d, Elo %s, LLR %.2f [%.2f, %.2f]",
+                                        game + 1, aWhite ? "A-B" : "B-A", result, reason, m_wins, m_losses, m_draws,
+                                        eloString(), llr, lowerBound(), upperBound()));
+            if(m_json != null)
+                Files.write(m_json, json().getBytes(StandardCharsets.UTF_8));
+        }
+        
+        synchronized int played()
+        {
+            return m_wins + m_losses + m_draws;
+        }
+        
+        /// A's score per game, counting a draw as half
+        synchronized double score()
+        {
+            return played() == 0 ? 0.5 : (m_wins + 0.5 * m_draws) / played();
+        }
+        
+        /// Variance of A's score per game
+        synchronized double variance()
+        {
+            int n = played();
+            if(n == 0)
+                return 0;
+            double p = score();
+            return (m_wins * (1 - p) * (1 - p) + m_draws * (0.5 - p) * (0.5 - p) + m_losses * p * p) / n;
+        }
+        
+        /// Converts an expected score into an Elo difference and back
+        static double elo(double score)
+        {
+            score = Math.max(1e-6, Math.min(1 - 1e-6, score));
+            return -400 * Math.log10(1 / score - 1);
+        }
+        
+        static double expectedScore(double elo)
+        {
+            return 1 / (1 + Math.pow(10, -elo / 400));
+        }
+        
+        /// Elo difference of A over B with its 95% confidence margin
+        synchronized String eloString()
+        {
+            double p = score();
+            double margin = 1.96 * Math.sqrt(variance() / Math.max(1, played()));
+            return String.format("%.1f +/- %.1f", elo(p), (elo(p + margin) - elo(p - margin)) / 2);
+        }
+        
+        /*
+         * Log-likelihood ratio of elo1 against elo0, using the normal
+         * approximation to the score distribution: with s0 and s1 the expected
+         * scores under the two hypotheses, LLR = n (s1 - s0) (2 p - s0 - s1) / (2 var).
+         */
+        synchronized double llr()
+        {
+            double var = variance();
+            if(var <= 0)
+                return 0;
+            double s0 = expectedScore(m_elo0);
+            double s1 = expectedScore(m_elo1);
+            return played() * (s1 - s0) * (2 * score() - s0 - s1) / (2 * var);
+        }
+        
+        static double lowerBound()
+        {
+            return Math.log(SPRT_BETA / (1 - SPRT_ALPHA));
+        }
+        
+        static double upperBound()
+        {
+            return Math.log((1 - SPRT_BETA) / SPRT_ALPHA);
+        }
+        
+        synchronized String summary()
+        {
+            return String.format("%d games: A %d wins, %d losses, %d draws, score %.1f%%, Elo %s, LLR %.2f, %s",
+                                 played(), m_wins, m_losses, m_draws, 100 * score(), eloString(), llr(), m_status);
+        }
+        
+        synchronized String json()
+        {
+            double p = score();
+            double margin = 1.96 * Math.sqrt(variance() / Math.max(1, played()));
+            return String.format(Locale.ROOT, "{\n  \"engineA\": \"depth %d%s\",\n  \"engineB\": \"depth %d%s\",\n  \"seed\": %d,\n"
+                                 + "  \"games\": %d,\n  \"wins\": %d,\n  \"losses\": %d,\n  \"draws\": %d,\n  \"score\": %.4f,\n"
+                                 + "  \"elo\": %.1f,\n  \"eloMargin\": %.1f,\n  \"llr\": %.3f,\n  \"lowerBound\": %.3f,\n"
+                                 + "  \"upperBound\": %.3f,\n  \"elo0\": %.1f,\n  \"elo1\": %.1f,\n  \"status\": \"%s\"\n}\n",
+                                 m_depthA, describe(m_a), m_depthB, describe(m_b), m_seed, played(), m_wins, m_losses, m_draws, p,
+                                 elo(p), (elo(p + margin) - elo(p - margin)) / 2, llr(), lowerBound(), upperBound(),
+                                 m_elo0, m_elo1, m_status);
+        }
+    }
+    
+    /*
+     * Counts the leaf nodes of the move tree to a fixed depth (perft), for
+     * checking move generation and measuring its speed. Under this program's
+     * rules there is no check, castling or en passant, pawns always become
+     * queens, and a move that takes a king ends the game, so it counts as one
+     * leaf no matter how much depth is left.
+     */
+    static class Perft
+    {
+        int[][] m_moves = new int[MAX_PLY][MAX_MOVES];
+        UndoInfo[] m_undo = new UndoInfo[MAX_PLY];
+        PerftTable m_table; // may be null
+        
+        Perft(PerftTable table)
+        {
+            m_table = table;
+            for(int i = 0; i < MAX_PLY; i++)
+                m_undo[i] = new UndoInfo();
+        }
+        
+        long count(ChessState state, int depth, boolean white, int ply)
+        {
+            int[] moves = m_moves[ply];
+            int moveCount = state.generateMoves(white, moves);
+            if(depth <= 1)
+                return moveCount;
+            long key = 0;
+            if(m_table != null)
+            {
+                key = state.hashKey(white) ^ ((long)depth * 0x9e3779b97f4a7c15L);
+                long cached = m_table.probe(key);
+                if(cached >= 0)
+                    return cached;
+            }
+            long nodes = 0;
+            UndoInfo undo = m_undo[ply];
+            for(int i = 0; i < moveCount; i++)
+            {
+                if(state.makeMove(moves[i], undo))
+                    nodes++;
+                else
+                    nodes += count(state, depth - 1, !white, ply + 1);
+                state.unmakeMove(moves[i], undo);
+            }
+            if(m_table != null)
+                m_table.store(key, nodes);
+            return nodes;
+        }
+        
+        /*
+         * Counts the leaves below each move of the root position, using one task
+         * per root move on the given pool when there is one. Returns the counts in
+         * the same order as the moves written into rootMoves.
+         */
+        static long[] divide(ChessState state, int depth, boolean white, int[] rootMoves, int moveCount,
+                             PerftTable table, ExecutorService pool) throws Exception
+        {
+            long[] counts = new long[moveCount];
+            ArrayList<Future<Long>> tasks = new ArrayList<Future<Long>>();
+            for(int i = 0; i < moveCount; i++)
+            {
+                int m = rootMoves[i];
+                ChessState board = new ChessState(state);
+                Callable<Long> task = () -> {
+                    UndoInfo undo = new UndoInfo();
+                    if(board.makeMove(m, undo) || depth <= 1)
+                        return 1L;
+                    return new Perft(table).count(board, depth - 1, !white, 0);
+                };
+                if(pool != null)
+                    tasks.add(pool.submit(task));
+                else
+                    counts[i] = task.call();
+            }
+            for(int i = 0; i < tasks.size(); i++)
+                counts[i] = tasks.get(i).get();
+            return counts;
+        }
+    }
+    
+    /// A direct-mapped table of perft subtree counts. Like the transposition
+    /// table it stores key ^ count so that threads can share it without locks.
+    static class PerftTable
+    {
+        long[] m_keys;
+        long[] m_counts;
+        int m_mask;
+        
+        PerftTable(int megabytes)
+        {
+            int entries = Integer.highestOneBit((int)Math.min(((long)megabytes << 20) / 16, 1 << 30));
+            m_keys = new long[entries];
+            m_counts = new long[entries];
+            m_mask = entries - 1;
+        }
+        
+        /// Returns the stored count for key, or -1 if there is none
+        long probe(long key)
+        {
+            int i = (int)key & m_mask;
+            long count = m_counts[i];
+            return ((m_keys[i] ^ count) == key && count != 0) ? count : -1;
+        }
+        
+        void store(long key, long count)
+        {
+            int i = (int)key & m_mask;
+            m_counts[i] = count;
+            m_keys[i] = key ^ count;
+        }
+    }
+    
+    /// Runs perft or divide from the starting position (after -moves, if given)
+    /// and prints the counts and speed
+    static void runPerft(int depth, boolean divide, Options options, PrintStream out) throws Exception
+    {
+        ChessState s = new ChessState();
+        boolean white = s.playMoves(options.moves, true);
+        PerftTable table = options.perftHash ? new PerftTable(options.hashMegabytes) : null;
+        ExecutorService pool = options.threads > 1 ? Executors.newFixedThreadPool(options.threads) : null;
+        try
+        {
+            int[] rootMoves = new int[MAX_MOVES];
+            int moveCount = s.generateMoves(white, rootMoves);
+            long start = System.nanoTime();
+            long[] counts = Perft.divide(s, depth, white, rootMoves, moveCount, table, pool);
+            long elapsed = System.nanoTime() - start;
+            long total = 0;
+            ArrayList<String> lines = new ArrayList<String>();
+            for(int i = 0; i < moveCount; i++)
+            {
+                total += counts[i];
+                lines.add(moveToString(rootMoves[i]) + ": " + counts[i]);
+            }
+            if(divide)
+            {
+                Collections.sort(lines);
+                for(String line : lines)
+                    out.println(line);
+                out.println();
+                out.println("moves: " + moveCount);
+            }
+            out.println("perft " + depth + ": " + total + " nodes in " + (elapsed / 1000000) + " ms ("
+                        + (long)(total / Math.max(elapsed / 1e9, 1e-9)) + " nps)");
+        }
+        finally
+        {
+            if(pool != null)
+                pool.shutdown();
+        }
+    }
+    
+    /*
+     * Searches every benchmark position to a fixed depth with one thread, an
+     * empty table and no evaluation noise, so the total node count is the same
+     * on every run. A change that alters the node signature changed the search;
+     * the nps shows whether it got faster.
+     */
+    static long bench(int depth, Options options, PrintStream out) throws Exception
+    {
+        TranspositionTable table = new TranspositionTable(options.hashMegabytes);
+        SearchLimits limits = new SearchLimits();
+        limits.depth = depth;
+        long totalNodes = 0;
+        long totalTime = 0;
+        for(int i = 0; i < BENCH_POSITIONS.length; i++)
+        {
+            ChessState s = new ChessState();
+            boolean white = s.playMoves(BENCH_POSITIONS[i], true);
+            table.clear();
+            SearchContext context = new SearchContext(table);
+            options.configure(context);
+            context.m_jitter = false;
+            long start = System.nanoTime();
+            SearchResult result = iterativeDeepening(s, context, white, limits);
+            long elapsed = System.nanoTime() - start;
+            totalNodes += result.nodes;
+            totalTime += elapsed;
+            out.println(String.format("position %2d: best %s value %6d nodes %12d time %7d ms  pv %s",
+                                      i + 1, moveToString(result.bestMove), result.score, result.nodes, elapsed / 1000000, result.pvString()));
+        }
+        out.println("===========================");
+        out.println("Total time (ms) : " + totalTime / 1000000);
+        out.println("Nodes searched  : " + totalNodes);
+        out.println("Nodes/second    : " + (long)(totalNodes / Math.max(totalTime / 1e9, 1e-9)));
+        return totalNodes;
+    }
+    
+    /*
+     * A small microbenchmark harness for the engine's hot paths. Each benchmark
+     * runs for a number of timed warmup iterations so the JIT settles, then for a
+     * number of measured iterations, and reports the mean time per operation with
+     * its 99.9% confidence error and the bytes allocated per operation (the same
+     * figure as JMH's gc.alloc.rate.norm). Results are fed to a sink so the JIT
+     * can't drop the work.
+     */
+    static class MicroBenchmark
+    {
+        interface Operation
+        {
+            long run() throws Exception;
+        }
+        
+        int m_warmupIterations = 5;
+        int m_iterations = 5;
+        long m_iterationNanos = 500000000L;
+        String m_filter = "";
+        PrintStream m_out;
+        volatile long m_sink;
+        
+        MicroBenchmark(PrintStream out)
+        {
+            m_out = out;
+        }
+        
+        void header()
+        {
+            m_out.println(String.format("%-28s %5s %14s %12s  %-6s %12s", "Benchmark", "Cnt", "Score", "Error", "Units", "alloc B/op"));
+        }
+        
+        void measure(String name, Operation op) throws Exception
+        {
+            if(!name.contains(m_filter))
+                return;
+            for(int i = 0; i < m_warmupIterations; i++)
+                iteration(op);
+            double[] nanosPerOp = new double[m_iterations];
+            long ops = 0;
+            long allocated = 0;
+            for(int i = 0; i < m_iterations; i++)
+            {
+                long allocatedBefore = allocatedBytes();
+                long[] result = iteration(op);
+                allocated += allocatedBytes() - allocatedBefore;
+                ops += result[0];
+                nanosPerOp[i] = (double)result[1] / result[0];
+            }
+            double mean = 0;
+            for(double v : nanosPerOp)
+                mean += v;
+            mean /= m_iterations;
+            double variance = 0;
+            for(double v : nanosPerOp)
+                variance += (v - mean) * (v - mean);
+            double error = m_iterations > 1 ? 3.29 * Math.sqrt(variance / (m_iterations - 1)) / Math.sqrt(m_iterations) : 0;
+            String units = "ns/op";
+            if(mean >= 1e6)
+            {
+                mean /= 1e6;
+                error /= 1e6;
+                units = "ms/op";
+            }
+            m_out.println(String.format("%-28s %5d %14.3f +- %10.3f  %-6s %12d", name, m_iterations, mean, error, units,
+                                        allocated < 0 ? -1 : allocated / ops));
+        }
+        
+        /// Runs op until the iteration time is used up; returns {operations, nanoseconds}
+        long[] iteration(Operation op) throws Exception
+        {
+            long sink = 0;
+            long ops = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do
+            {
+                sink += op.run();
+                ops++;
+                elapsed = System.nanoTime() - start;
+            } while(elapsed < m_iterationNanos);
+            m_sink += sink;
+            return new long[] { ops, elapsed };
+        }
+        
+        /// Returns the bytes this thread has allocated so far, or -1 if the JVM can't tell
+        static long allocatedBytes()
+        {
+            java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+            if(bean instanceof com.sun.management.ThreadMXBean)
+                return ((com.sun.management.ThreadMXBean)bean).getCurrentThreadAllocatedBytes();
+            return -1;
+        }
+    }
+    
+    /*
+     * Microbenchmarks for moves(), full ChessMoveIterator enumeration,
+     * generateMoves(), heuristic(), copy-and-move(), make/unmake, an opening
+     * book lookup and a fixed-depth alphaBeta, over the benchmark positions.
+     */
+    static void microBenchmarks(MicroBenchmark bench) throws Exception
+    {
+        ChessState[] positions = new ChessState[BENCH_POSITIONS.length];
+        boolean[] sides = new boolean[BENCH_POSITIONS.length];
+        for(int i = 0; i < positions.length; i++)
+        {
+            positions[i] = new ChessState();
+            sides[i] = positions[i].playMoves(BENCH_POSITIONS[i], true);
+        }
+        int[] moves = new int[MAX_MOVES];
+        UndoInfo undo = new UndoInfo();
+        Random rand = new Random(1);
+        bench.header();
+        bench.measure("moves", () -> {
+            long n = 0;
+            for(int i = 0; i < positions.length; i++)
+            {
+                for(long b = positions[i].m_colors[sides[i] ? 1 : 0]; b != 0; b &= b - 1)
+                {
+                    int sq = Long.numberOfTrailingZeros(b);
+                    n += positions[i].moves(sq & 7, sq >> 3).size();
+                }
+            }
+            return n;
+        });
+        bench.measure("iterator", () -> {
+            long n = 0;
+            for(int i = 0; i < positions.length; i++)
+            {
+                ChessMoveIterator it = positions[i].iterator(sides[i]);
+                while(it.hasNext())
+                    n += it.next().xDest;
+            }
+            return n;
+        });
+        bench.measure("generateMoves", () -> {
+            long n = 0;
+            for(int i = 0; i < positions.length; i++)
+                n += positions[i].generateMoves(sides[i], moves);
+            return n;
+        });
+        bench.measure("heuristic", () -> {
+            long n = 0;
+            for(int i = 0; i < positions.length; i++)
+                n += positions[i].heuristic(rand);
+            return n;
+        });
+        
+        //every position one move after a benchmark position, scored a batch at a time
+        int leafCount = 0;
+        for(int i = 0; i < positions.length; i++)
+            leafCount += positions[i].generateMoves(sides[i], moves);
+        int[] arena = new int[8 * leafCount];
+        int[] expected = new int[leafCount];
+        leafCount = 0;
+        for(int i = 0; i < positions.length; i++)
+        {
+            int count = positions[i].generateMoves(sides[i], moves);
+            for(int j = 0; j < count; j++)
+            {
+                positions[i].makeMove(moves[j], undo);
+                positions[i].packRows(arena, leafCount);
+                expected[leafCount++] = positions[i].m_material + positions[i].m_positional;
+                positions[i].unmakeMove(moves[j], undo);
+            }
+        }
+        int[] leafScores = new int[leafCount];
+        int leaves = leafCount;
+        BatchEvaluator[] evaluators = { new ScalarBatchEvaluator(), batchEvaluator() };
+        for(BatchEvaluator evaluator : evaluators)
+        {
+            if(evaluator != evaluators[0] && evaluator.name().equals(evaluators[0].name()))
+            {
+                if("batchEvaluate/vector".contains(bench.m_filter))
+                    bench.m_out.println("batchEvaluate/vector skipped: compile VectorEvaluator.java and run with --add-modules jdk.incubator.vector");
+                continue;
+            }
+            evaluator.evaluate(arena, leaves, leafScores);
+            if(!Arrays.equals(leafScores, expected))
+                throw new Exception(evaluator.name() + " batch evaluation disagrees with the incremental score");
+            bench.measure("batchEvaluate/" + evaluator.name(), () -> {
+                evaluator.evaluate(arena, leaves, leafScores);
+                return leafScores[leaves - 1];
+            });
+        }
+        bench.measure("copyAndMove", () -> {
+            long n = 0;
+            for(int i = 0; i < positions.length; i++)
+            {
+                int count = positions[i].generateMoves(sides[i], moves);
+                for(int j = 0; j < count; j++)
+                {
+                    ChessState copy = new ChessState(positions[i]);
+                    copy.move(moveFrom(moves[j]) & 7, moveFrom(moves[j]) >> 3, moveTo(moves[j]) & 7, moveTo(moves[j]) >> 3);
+                    n += copy.m_hash;
+                }
+            }
+            return n;
+        });
+        bench.measure("makeUnmake", () -> {
+            long n = 0;
+            for(int i = 0; i < positions.length; i++)
+            {
+                int count = positions[i].generateMoves(sides[i], moves);
+                for(int j = 0; j < count; j++)
+                {
+                    positions[i].makeMove(moves[j], undo);
+                    n += positions[i].m_hash;
+                    positions[i].unmakeMove(moves[j], undo);
+                }
+            }
+            return n;
+        });
+        //a book of the benchmark lines, so every position is in it
+        BookBuilder builder = new BookBuilder();
+        for(String line : BENCH_POSITIONS)
+            builder.addLine(line + " a2a3");
+        Path bookPath = Files.createTempFile("bench", ".book");
+        builder.write(bookPath);
+        OpeningBook book = new OpeningBook(bookPath);
+        bookPath.toFile().deleteOnExit();
+        bench.measure("book.probe", () -> {
+            long n = 0;
+            for(int i = 0; i < positions.length; i++)
+                n += book.probe(positions[i], sides[i], rand);
+            return n;
+        });
+        SearchContext context = new SearchContext();
+        SearchLimits limits = new SearchLimits();
+        for(int depth = 3; depth <= 6; depth++)
+        {
+            int d = depth;
+            bench.measure("alphaBeta.depth" + depth, () -> {
+                long n = 0;
+                for(int i = 0; i < positions.length; i++)
+                {
+                    context.start(limits, sides[i]);
+                    n += alphaBeta(positions[i], context, 0, d, -INFINITY, INFINITY, sides[i], false);
+                }
+                return n;
+            });
+        }
+    }
+    
+    /*
+     * Measures how the parallel search scales: searches every benchmark
+     * position to a fixed depth with 1, 2, 4, ... threads, starting each run
+     * from an empty table, and prints the time to depth and speedup over one thread.
+     */
+    static void smpBenchmark(int depth, int maxThreads, Options options, PrintStream out) throws Exception
+    {
+        TranspositionTable table = new TranspositionTable(options.hashMegabytes);
+        SearchLimits limits = new SearchLimits();
+        limits.depth = depth;
+        out.println("depth " + depth + ", " + BENCH_POSITIONS.length + " positions, "
+                    + Runtime.getRuntime().availableProcessors() + " processors");
+        out.println("threads      time(ms)         nodes   speedup  first-move cutoffs");
+        long baseTime = 0;
+        for(int threads = 1; threads <= maxThreads; threads *= 2)
+        {
+            ParallelSearch search = new ParallelSearch(table, threads);
+            search.configure(options);
+            long time = 0;
+            long nodes = 0;
+            long cutoffs = 0;
+            long firstMoveCutoffs = 0;
+            for(String line : BENCH_POSITIONS)
+            {
+                ChessState s = new ChessState();
+                boolean white = s.playMoves(line, true);
+                table.clear();
+                long start = System.nanoTime();
+                search.search(s, white, limits);
+                time += System.nanoTime() - start;
+                nodes += search.nodes();
+                cutoffs += search.mainContext().m_stats.betaCutoffs;
+                firstMoveCutoffs += search.mainContext().m_stats.firstMoveCutoffs;
+            }
+            search.shutdown();
+            if(threads == 1)
+                baseTime = time;
+            out.println(String.format("%7d %13d %13d %9.2f %18.1f%%", threads, time / 1000000, nodes, (double)baseTime / time,
+                                      cutoffs == 0 ? 0 : 100.0 * firstMoveCutoffs / cutoffs));
+        }
+    }
+    
+    /*
+     * Plays random games and checks that every makeMove/unmakeMove pair puts
+     * the board back exactly as it was, and that makeMove agrees with move().
+     * Returns the number of moves checked.
+     */
+    public static long verifyMakeUnmake(long seed, int games) throws Exception
+    {
+        Random rand = new Random(seed);
+        int[] moves = new int[MAX_MOVES];
+        int[] line = new int[MAX_PLY];
+        UndoInfo[] undo = new UndoInfo[MAX_PLY];
+        ChessState[] before = new ChessState[MAX_PLY];
+        for(int i = 0; i < MAX_PLY; i++)
+            undo[i] = new UndoInfo();
+        long checked = 0;
+        for(int g = 0; g < games; g++)
+        {
+            ChessState s = new ChessState();
+            boolean white = true;
+            int ply = 0;
+            while(ply < MAX_PLY)
+            {
+                int moveCount = s.generateMoves(white, moves);
+                if(moveCount == 0)
+                    break;
+                int m = moves[rand.nextInt(moveCount)];
+                ChessState expected = new ChessState(s);
+                boolean expectedOver = expected.move(moveFrom(m) & 7, moveFrom(m) >> 3, moveTo(m) & 7, moveTo(m) >> 3);
+                before[ply] = new ChessState(s);
+                line[ply] = m;
+                boolean over = s.makeMove(m, undo[ply]);
+                if(over != expectedOver || !s.sameBoard(expected))
+                    throw new Exception("makeMove disagrees with move() in game " + g + " at ply " + ply);
+                if(!s.sameBoard(new ChessState(s.m_rows)))
+                    throw new Exception("incremental hash or score out of sync in game " + g + " at ply " + ply);
+                ply++;
+                checked++;
+                if(over)
+                    break;
+                white = !white;
+            }
+            while(ply > 0)
+            {
+                ply--;
+                s.unmakeMove(line[ply], undo[ply]);
+                if(!s.sameBoard(before[ply]))
+                    throw new Exception("unmakeMove did not restore the board in game " + g + " at ply " + ply);
+            }
+        }
+        return checked;
+    }
+    
+    /*
+     * UCI (Universal Chess Interface) front end, so that the engine can be run
+     * by chess GUIs and tournament managers. Commands are read on the calling
+     * thread and searches run on a thread of their own, so "stop" and
+     * "ponderhit" are seen while a search is going on. The engine plays by
+     * this program's rules: the game ends when a king is taken, and there is
+     * no castling or en passant.
+     *
+     * Pondering: after its move the engine is sent the position after the
+     * reply it expects along with "go ponder", and searches it with no time
+     * limit while the opponent thinks. If the opponent plays that reply,
+     * "ponderhit" turns the same search into an ordinary one that keeps
+     * everything it has done so far. If not, "stop" ends it, and what it
+     * stored in the transposition table still helps the next search.
+     */
+    static class UciEngine
+    {
+        static final int MAX_HASH = 4096;
+        static final int MAX_THREADS = 256;
+        
+        Options m_options;
+        PrintStream m_out;
+        ParallelSearch m_search; // created on the first "go", null again after the size changes
+        OpeningBook m_book;      // may be null
+        ChessState m_state = new ChessState();
+        boolean m_white = true;  // side to move in m_state
+        ExecutorService m_searchThread = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "uci-search");
+            t.setDaemon(true);
+            return t;
+        });
+        
+        // the search in progress; a finished ponder or infinite search waits
+        // for "ponderhit" or "stop" before it reports its move
+        Future<?> m_running; // null if there is none
+        SearchLimits m_limits;
+        boolean m_searchWhite;
+        volatile boolean m_stopRequested;
+        
+        UciEngine(Options options, PrintStream out) throws Exception
+        {
+            m_options = options;
+            m_out = out;
+            m_state.resetBoard();
+            if(options.book != null)
+            {
+                m_book = new OpeningBook(Paths.get(options.book));
+                m_book.m_random = new Random(options.seed);
+            }
+        }
+        
+        /// Reads and carries out commands until "quit" or the end of the input
+        void run(BufferedReader in) throws Exception
+        {
+            String line;
+            while((line = in.readLine()) != null)
+            {
+                String[] words = line.trim().split("\\s+");
+                if(words[0].isEmpty())
+                    continue;
+                if(!execute(words))
+                    break;
+            }
+            stopSearch();
+            if(m_search != null)
+                m_search.shutdown();
+            m_searchThread.shutdownNow();
+        }
+        
+        /// Carries out one command. Returns false for "quit".
+        boolean execute(String[] words) throws Exception
+        {
+            switch(words[0])
+            {
+                case "uci":
+                    send("id name ChessState");
+                    send("id author Jacob Hubbard");
+                    send("option name Hash type spin default " + m_options.hashMegabytes + " min 1 max " + MAX_HASH);
+                    send("option name Threads type spin default " + m_options.threads + " min 1 max " + MAX_THREADS);
+                    send("option name HashFile type string default " + (m_options.hashFile != null ? m_options.hashFile : "<empty>"));
+                    send("option name Ponder type check default false");
+                    send("uciok");
+                    break;
+                case "isready":
+                    send("readyok");
+                    break;
+                case "setoption":
+                    stopSearch();
+                    setOption(words);
+                    break;
+                case "ucinewgame":
+                    stopSearch();
+                    if(m_search != null)
+                        m_search.newGame();
+                    break;
+                case "position":
+                    stopSearch();
+                    position(words);
+                    break;
+                case "go":
+                    stopSearch();
+                    go(words);
+                    break;
+                case "stop":
+                    stopSearch();
+                    break;
+                case "ponderhit":
+                    ponderhit();
+                    break;
+                case "quit":
+                    return false;
+                default:
+                    send("info string unknown command " + words[0]);
+            }
+            return true;
+        }
+        
+        void send(String line)
+        {
+            m_out.println(line);
+            m_out.flush();
+        }
+        
+        /// Handles "setoption name <name> [value <value>]"
+        void setOption(String[] words)
+        {
+            int valueAt = Arrays.asList(words).indexOf("value");
+            int nameEnd = (valueAt < 0) ? words.length : valueAt;
+            String name = String.join(" ", Arrays.copyOfRange(words, Math.min(2, nameEnd), nameEnd));
+            String value = (valueAt < 0) ? "" : String.join(" ", Arrays.copyOfRange(words, valueAt + 1, words.length));
+            try
+            {
+                switch(name.toLowerCase())
+                {
+                    case "hash":
+                        m_options.set("hash", value);
+                        m_options.hashMegabytes = Math.min(m_options.hashMegabytes, MAX_HASH);
+                        break;
+                    case "threads":
+                        m_options.set("threads", value);
+                        m_options.threads = Math.min(m_options.threads, MAX_THREADS);
+                        break;
+                    case "hashfile":
+                        m_options.hashFile = (value.isEmpty() || value.equals("<empty>")) ? null : value;
+                        break;
+                    case "ponder":
+                        return; // the GUI decides when to ponder
+                    default:
+                        send("info string unknown option " + name);
+                        return;
+                }
+            }
+            catch(Exception e)
+            {
+                send("info string " + e.getMessage());
+                return;
+            }
+            //the next search builds a table and threads of the new size
+            if(m_search != null)
+                m_search.shutdown();
+            m_search = null;
+        }
+        
+        /// Handles "position startpos [moves ...]" and "position fen <fen> [moves ...]".
+        /// The position is set up on a copy and only replaces the current one if
+        /// every move is legal, so a bad command leaves the last good position.
+        void position(String[] words) throws Exception
+        {
+            int moves = Arrays.asList(words).indexOf("moves");
+            if(moves < 0)
+                moves = words.length;
+            ChessState state = new ChessState(m_state);
+            boolean white;
+            if(words.length >= 2 && "startpos".equals(words[1]))
+            {
+                state.resetBoard();
+                white = true;
+            }
+            else if(words.length >= 3 && "fen".equals(words[1]))
+            {
+                try
+                {
+                    white = state.setFen(String.join(" ", Arrays.copyOfRange(words, 2, moves)));
+                }
+                catch(Exception e)
+                {
+                    send("info string " + e.getMessage());
+                    return;
+                }
+            }
+            else
+            {
+                send("info string position needs startpos or fen");
+                return;
+            }
+            for(int i = moves + 1; i < words.length; i++)
+            {
+                int m = state.parseMove(words[i], white);
+                if(m == NO_MOVE)
+                {
+                    send("info string illegal move " + words[i]);
+                    return;
+                }
+                state.move(moveFrom(m) & 7, moveFrom(m) >> 3, moveTo(m) & 7, moveTo(m) >> 3);
+                white = !white;
+            }
+            m_state = state;
+            m_white = white;
+        }
+        
+        /// Handles "go" and starts the search on the search thread
+        void go(String[] words) throws IOException
+        {
+            SearchLimits limits = new SearchLimits();
+            boolean infinite = false;
+            for(int i = 1; i < words.length; i++)
+            {
+                boolean hasValue = i + 1 < words.length;
+                switch(words[i])
+                {
+                    case "ponder":
+                        limits.ponder = true;
+                        break;
+                    case "infinite":
+                        infinite = true;
+                        break;
+                    case "depth":
+                        if(hasValue)
+                            limits.depth = Math.max(1, Math.min(Integer.parseInt(words[++i]), MAX_PLY - 1));
+                        break;
+                    case "nodes":
+                        if(hasValue)
+                            limits.nodes = Long.parseLong(words[++i]);
+                        break;
+                    case "movetime":
+                        if(hasValue)
+                            limits.moveTime = Long.parseLong(words[++i]);
+                        break;
+                    case "wtime":
+                        //a clock at or below zero still has to be treated as a time limit
+                        if(hasValue)
+                            limits.whiteTime = Math.max(1, Long.parseLong(words[++i]));
+                        break;
+                    case "btime":
+                        if(hasValue)
+                            limits.blackTime = Math.max(1, Long.parseLong(words[++i]));
+                        break;
+                    case "winc":
+                        if(hasValue)
+                            limits.whiteIncrement = Long.parseLong(words[++i]);
+                        break;
+                    case "binc":
+                        if(hasValue)
+                            limits.blackIncrement = Long.parseLong(words[++i]);
+                        break;
+                    default:
+                        break; // movestogo and searchmoves are not used
+                }
+            }
+            
+            //in the opening, play from the book without searching
+            if(m_book != null && !limits.ponder && !infinite)
+            {
+                int bookMove = m_book.probe(m_state, m_white);
+                if(bookMove != NO_MOVE)
+                {
+                    send("bestmove " + moveToString(bookMove));
+                    return;
+                }
+            }
+            
+            ParallelSearch search = search();
+            ChessState board = new ChessState(m_state);
+            boolean white = m_white;
+            m_limits = limits;
+            m_searchWhite = white;
+            m_stopRequested = false;
+            boolean hold = infinite;
+            m_running = m_searchThread.submit(() -> {
+                SearchResult result = search.search(board, white, limits);
+                synchronized(this)
+                {
+                    while((limits.ponder || hold) && !m_stopRequested)
+                        wait();
+                }
+                if(result.pv.length >= 2)
+                    send("bestmove " + moveToString(result.bestMove) + " ponder " + moveToString(result.pv[1]));
+                else
+                    send("bestmove " + moveToString(result.bestMove));
+                return null;
+            });
+        }
+        
+        /// Ends the search in progress, if any, once it has reported its move
+        void stopSearch() throws Exception
+        {
+            if(m_running == null)
+                return;
+            synchronized(this)
+            {
+                m_stopRequested = true;
+                notifyAll();
+            }
+            m_search.mainContext().stop();
+            m_running.get();
+            m_running = null;
+        }
+        
+        /// The opponent played the move the engine was pondering on
+        void ponderhit()
+        {
+            if(m_running == null || !m_limits.ponder)
+                return;
+            m_search.mainContext().ponderhit(m_limits, m_searchWhite);
+            synchronized(this)
+            {
+                notifyAll();
+            }
+        }
+        
+        /// Returns the search, building it if the options have changed
+        ParallelSearch search() throws IOException
+        {
+            if(m_search == null)
+            {
+                m_search = new ParallelSearch(TranspositionTable.open(m_options.hashMegabytes, m_options.hashFile), m_options.threads);
+                m_search.setJitter(m_options.jitter, m_options.seed);
+                m_search.setCollectStats(false); // the GUI only sees the info lines
+                m_search.configure(m_options);
+                m_search.mainContext().m_iterationListener = this::info;
+            }
+            return m_search;
+        }
+        
+        /// Reports a completed iteration. Called on the search thread.
+        void info(SearchResult result)
+        {
+            SearchContext context = m_search.mainContext();
+            if(m_stopRequested)
+                context.stop(); // "stop" may have come before the search reset its flag
+            long nodes = m_search.nodes();
+            long millis = context.elapsedMillis();
+            send("info depth " + result.depth + " score " + uciScore(result.score) + " nodes " + nodes
+                 + " nps " + (nodes * 1000 / Math.max(1, millis)) + " time " + millis + " pv " + result.pvString());
+        }
+        
+        /// Converts a search value to UCI: centipawns (a pawn is worth 10 here),
+        /// or moves until the king is taken
+        static String uciScore(int value)
+        {
+            if(value >= WIN_THRESHOLD)
+                return "mate " + (WIN_SCORE - value + 1) / 2;
+            if(value <= -WIN_THRESHOLD)
+                return "mate -" + (WIN_SCORE + value) / 2;
+            return "cp " + value * 10;
+        }
+    }
+    
+    /*
+     * Local analysis server: other programs on the same machine send a
+     * position and search limits over HTTP and get back the best move, its
+     * value and the principal variation as JSON, without starting a JVM per
+     * position. It only listens on 127.0.0.1.
+     *
+     *   GET /analyze?moves=e2e4+e7e5&depth=8   (also movetime=ms, nodes=n)
+     *   GET /stats
+     *
+     * Searches run on a fixed pool of workers, each with its own SearchEngine
+     * so that its transposition table stays warm from one request to the
+     * next. The pool's queue is bounded: when it is full the request is
+     * turned away at once with 503, rather than piling up. Results of depth
+     * limited searches are kept in an LRU cache keyed by position and depth,
+     * so asking again costs nothing; time and node limited results depend on
+     * the machine's load, so they are not cached.
+     */
+    static class AnalysisServer
+    {
+        static final int DEFAULT_DEPTH = 6;
+        
+        Options m_options; // for each worker's engine
+        HttpServer m_server;
+        ThreadPoolExecutor m_workers;
+        ThreadLocal<SearchEngine> m_engines; // one per worker
+        LinkedHashMap<String, String> m_cache; // "hash/history/depth" to response, in access order; guarded by itself
+        int m_cacheSize;
+        
+        // counters for /stats
+        AtomicLong m_requests = new AtomicLong();
+        AtomicLong m_cacheHits = new AtomicLong();
+        AtomicLong m_rejected = new AtomicLong();
+        
+        AnalysisServer(Options options, int port, int workers, int queue, int cacheSize) throws IOException
+        {
+            m_options = options;
+            m_cacheSize = cacheSize;
+            m_cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+                {
+                    return size() > m_cacheSize;
+                }
+            };
+            m_workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queue), r -> {
+                Thread t = new Thread(r, "analysis-worker");
+                t.setDaemon(true);
+                return t;
+            });
+            m_engines = ThreadLocal.withInitial(() -> {
+                try
+                {
+                    return new SearchEngine(m_options, Thread.currentThread().getName());
+                }
+                catch(Exception e)
+                {
+                    throw new IllegalStateException(e);
+                }
+            });
+            m_server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            m_server.createContext("/analyze", this::analyze);
+            m_server.createContext("/stats", this::stats);
+        }
+        
+        void start()
+        {
+            m_server.start();
+        }
+        
+        void stop()
+        {
+            m_server.stop(0);
+            m_workers.shutdownNow();
+        }
+        
+        int port()
+        {
+            return m_server.getAddress().getPort();
+        }
+        
+        /// Runs a few searches on every worker so the JIT has compiled the search
+        /// before the first real request comes in
+        void warmUp() throws Exception
+        {
+            ArrayList<Future<?>> warmups = new ArrayList<Future<?>>();
+            for(int i = 0; i < m_workers.getCorePoolSize(); i++)
+            {
+                warmups.add(m_workers.submit(() -> {
+                    SearchEngine engine = m_engines.get();
+                    SearchLimits limits = new SearchLimits();
+                    limits.depth = 5;
+                    for(String line : BENCH_POSITIONS)
+                    {
+                        ChessState s = new ChessState();
+                        boolean white = s.playMoves(line, true);
+                        engine.search(s, white, limits);
+                    }
+                    engine.newGame();
+                    return null;
+                }));
+            }
+            for(Future<?> f : warmups)
+                f.get();
+        }
+        
+        /// Handles /analyze: checks the request and the cache on the server's
+        /// thread, then hands the search to a worker, which sends the reply
+        void analyze(HttpExchange exchange) throws IOException
+        {
+            m_requests.incrementAndGet();
+            Map<String, String> query;
+            ChessState s = new ChessState();
+            boolean white;
+            SearchLimits limits = new SearchLimits();
+            try
+            {
+                query = parseQuery(exchange);
+                boolean fenWhite = query.containsKey("fen") ? s.setFen(query.get("fen")) : true;
+                white = s.playMoves(query.getOrDefault("moves", ""), fenWhite);
+                if(query.containsKey("depth"))
+                    limits.depth = Math.max(1, Math.min(Integer.parseInt(query.get("depth")), MAX_PLY - 1));
+                if(query.containsKey("movetime"))
+                    limits.moveTime = Long.parseLong(query.get("movetime"));
+                if(query.containsKey("nodes"))
+                    limits.nodes = Long.parseLong(query.get("nodes"));
+                if(!query.containsKey("depth") && limits.moveTime <= 0 && limits.nodes <= 0)
+                    limits.depth = DEFAULT_DEPTH;
+            }
+            catch(Exception e)
+            {
+                reply(exchange, 400, "{\"error\": \"" + jsonEscape(String.valueOf(e.getMessage())) + "\"}");
+                return;
+            }
+            
+            //only a depth-limited search is worth keeping: it doesn't depend on the clock
+            //or on how busy the machine is. It still depends on what the worker's table
+            //holds, so the cache answers with whichever result was found first. The moves
+            //that led to the position are part of the key, since they decide repetitions
+            //and the no-progress draw.
+            String key = (limits.moveTime <= 0 && limits.nodes <= 0)
+                ? Long.toHexString(s.hashKey(white)) + "/" + Long.toHexString(s.reversibleHistoryKey()) + "/" + limits.depth : null;
+            if(key != null)
             {
-                for(x = 0; x < 8; x++)
+                String cached;
+                synchronized(m_cache)
+                {
+                    cached = m_cache.get(key);
+                }
+                if(cached != null)
                 {
-                    if(getPiece(x, y) != None)
+                    m_cacheHits.incrementAndGet();
+                    reply(exchange, 200, cached.replace("\"cached\": false", "\"cached\": true"));
+                    return;
+                }
+            }
+            
+            try
+            {
+                m_workers.execute(() -> {
+                    try
                     {
-                        if(isWhite(x, y) != white)
+                        SearchResult result = m_engines.get().search(s, white, limits);
+                        String json = resultJson(result);
+                        if(key != null)
                         {
-                            setPiece(x, y, None, true);
+                            synchronized(m_cache)
+                            {
+                                m_cache.put(key, json);
+                            }
                         }
+                        reply(exchange, 200, json);
                     }
-                }
+                    catch(Exception e)
+                    {
+                        try
+                        {
+                            reply(exchange, 500, "{\"error\": \"" + jsonEscape(String.valueOf(e.getMessage())) + "\"}");
+                        }
+                        catch(IOException ignored)
+                        {
+                            // the client has gone
+                        }
+                    }
+                });
+            }
+            catch(RejectedExecutionException e)
+            {
+                m_rejected.incrementAndGet();
+                reply(exchange, 503, "{\"error\": \"busy\"}");
             }
-            return true;
         }
-        return false;
-    }
-    
-    static int inc(int pos)
-    {
-        if(pos < 0 || pos >= 7)
-            return -1;
-        return pos + 1;
-    }
-    
-    static int dec(int pos)
-    {
-        if(pos < 1)
-            return -1;
-        return pos -1;
-    }
-    
-    boolean checkMove(ArrayList<Integer> pOutMoves, int col, int row, boolean bWhite)
-    {
-        if(col < 0 || row < 0)
-            return true;
-        int p = getPiece(col, row);
-        if(p > 0 && isWhite(col, row) == bWhite)
-            return true;
-        pOutMoves.add(col);
-        pOutMoves.add(row);
-        return (p > 0);
-    }
-    
-    boolean checkPawnMove(ArrayList<Integer> pOutMoves, int col, int row, boolean bDiagonal, boolean bWhite)
-    {
-        if(col < 0 || row < 0)
-            return true;
-        int p = getPiece(col, row);
-        if(bDiagonal)
+        
+        /// Handles /stats
+        void stats(HttpExchange exchange) throws IOException
         {
-            if(p == None || isWhite(col, row) == bWhite)
-                return true;
+            int cached;
+            synchronized(m_cache)
+            {
+                cached = m_cache.size();
+            }
+            reply(exchange, 200, "{\"requests\": " + m_requests.get() + ", \"cacheHits\": " + m_cacheHits.get()
+                                 + ", \"rejected\": " + m_rejected.get() + ", \"cached\": " + cached
+                                 + ", \"queued\": " + m_workers.getQueue().size() + ", \"active\": " + m_workers.getActiveCount() + "}");
         }
-        else
+        
+        static String resultJson(SearchResult result)
         {
-            if(p > 0)
-                return true;
+            StringBuilder pv = new StringBuilder();
+            for(int m : result.pv)
+                pv.append(pv.length() == 0 ? "\"" : ", \"").append(moveToString(m)).append('"');
+            return "{\"bestmove\": \"" + moveToString(result.bestMove) + "\", \"score\": " + result.score
+                   + ", \"scoreText\": \"" + scoreToString(result.score) + "\", \"depth\": " + result.depth
+                   + ", \"pv\": [" + pv + "], \"nodes\": " + result.nodes + ", \"millis\": " + result.stats.elapsedNanos / 1000000
+                   + ", \"cached\": false}";
         }
-        pOutMoves.add(col);
-        pOutMoves.add(row);
-        return (p > 0);
-    }
-    
-    /// Represents a possible  move
-    static class ChessMove
-    {
-        int xSource;
-        int ySource;
-        int xDest;
-        int yDest;
-    }
-    
-    /// Iterates through all the possible moves for the specified color.
-    static class ChessMoveIterator
-    {
-        int x, y;
-        ArrayList<Integer> moves;
-        ChessState state;
-        boolean white;
         
-        /// Constructs a move iterator
-        ChessMoveIterator(ChessState curState, boolean whiteMoves)
+        static String jsonEscape(String text)
         {
-            x = -1;
-            y = 0;
-            moves = null;
-            state = curState;
-            white = whiteMoves;
-            advance();
+            return text.replace("\\", "\\\\").replace("\"", "\\\"");
         }
         
-        private void advance()
+        /// Reads the parameters from the query string, and from the body of a form POST
+        static Map<String, String> parseQuery(HttpExchange exchange) throws IOException
         {
-            if(moves != null && moves.size() >= 2)
+            String query = exchange.getRequestURI().getRawQuery();
+            if("POST".equals(exchange.getRequestMethod()))
+            {
+                String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                query = (query == null || query.isEmpty()) ? body : query + "&" + body;
+            }
+            HashMap<String, String> params = new HashMap<String, String>();
+            if(query == null)
+                return params;
+            for(String pair : query.split("&"))
             {
-                moves.remove(moves.size() - 1);
-                moves.remove(moves.size() - 1);
+                if(pair.isEmpty())
+                    continue;
+                int equals = pair.indexOf('=');
+                String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), "UTF-8");
+                String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+                params.put(name, value);
             }
-            while(y < 8 && (moves == null || moves.size() < 2))
+            return params;
+        }
+        
+        static void reply(HttpExchange exchange, int status, String json) throws IOException
+        {
+            byte[] body = (json + "\n").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, body.length);
+            try(OutputStream out = exchange.getResponseBody())
             {
-                if(++x >= 8)
+                out.write(body);
+            }
+        }
+    }
+    
+    /*
+     * Analyzes a file of EPD positions, such as a test suite, a line at a time.
+     * A reader hands each position to a pool of workers, each with its own
+     * engine, and writes the results in file order. At most a few positions per
+     * worker are read ahead of the one being written, so the memory used stays
+     * the same however long the file is. Each result is the EPD record with the
+     * analysis appended as the standard acd (depth), acn (nodes), ce
+     * (centipawns for the side to move), dm (moves to take the king) and pv
+     * operations. A position with bm or am operations is solved if the best
+     * move is one of the bm moves and none of the am moves.
+     */
+    static class EpdBatch
+    {
+        static final int DEFAULT_DEPTH = 6;
+        static final int READ_AHEAD = 4; // positions in flight per worker
+        
+        ThreadPoolExecutor m_workers;
+        ThreadLocal<SearchEngine> m_engines; // one per worker
+        SearchLimits m_limits;
+        
+        // totals for the summary, added to by the workers
+        AtomicLong m_positions = new AtomicLong();
+        AtomicLong m_errors = new AtomicLong();
+        AtomicLong m_tests = new AtomicLong(); // positions with bm or am
+        AtomicLong m_solved = new AtomicLong();
+        AtomicLong m_nodes = new AtomicLong();
+        
+        EpdBatch(Options options, int workers, SearchLimits limits)
+        {
+            m_limits = limits;
+            m_workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(READ_AHEAD * workers), r -> {
+                Thread t = new Thread(r, "epd-worker");
+                t.setDaemon(true);
+                return t;
+            });
+            m_engines = ThreadLocal.withInitial(() -> {
+                try
                 {
-                    x = 0;
-                    y++;
+                    return new SearchEngine(options, Thread.currentThread().getName());
                 }
-                if(y < 8)
+                catch(Exception e)
                 {
-                    if(state.getPiece(x, y) != ChessState.None && state.isWhite(x, y) == white)
-                        moves = state.moves(x, y);
-                    else
-                        moves = null;
+                    throw new IllegalStateException(e);
                 }
-            }
+            });
         }
         
-        /// Returns true iff there is another move to visit
-        boolean hasNext()
+        /// Analyzes every position read from in and writes the results to out in the same order
+        void run(BufferedReader in, PrintStream out) throws Exception
         {
-            return (moves != null && moves.size() >= 2);
+            //the queue is never fuller than the pool's, so submitting can't be rejected
+            ArrayDeque<Future<String>> pending = new ArrayDeque<Future<String>>();
+            int window = READ_AHEAD * m_workers.getCorePoolSize();
+            String line;
+            while((line = in.readLine()) != null)
+            {
+                String record = line.trim();
+                if(record.isEmpty() || record.startsWith("#"))
+                    continue;
+                if(pending.size() >= window)
+                    out.println(pending.poll().get());
+                pending.add(m_workers.submit(() -> analyze(record)));
+            }
+            while(!pending.isEmpty())
+                out.println(pending.poll().get());
+            out.flush();
+            m_workers.shutdownNow();
         }
         
-        /// Returns the next move
-        ChessState.ChessMove next()
+        /// Searches one EPD record on the calling worker's engine and returns the result line
+        String analyze(String record)
         {
-            ChessState.ChessMove m = new ChessState.ChessMove();
-            m.xSource = x;
-            m.ySource = y;
-            m.xDest = moves.get(moves.size() - 2);
-            m.yDest = moves.get(moves.size() - 1);
-            advance();
-            return m;
+            m_positions.incrementAndGet();
+            String[] fields = record.split("\\s+");
+            if(fields.length > 4 && !fields[fields.length - 1].matches("\\d+") && !record.endsWith(";"))
+                record += ";"; // the last operation
+            ChessState s = new ChessState();
+            boolean white;
+            try
+            {
+                white = s.setFen(record);
+            }
+            catch(Exception e)
+            {
+                m_errors.incrementAndGet();
+                return record + " c0 \"" + e.getMessage().replace("\"", "'") + "\";";
+            }
+            
+            SearchEngine engine = m_engines.get();
+            SearchResult result;
+            try
+            {
+                engine.newGame(); // the result mustn't depend on which positions the worker saw before
+                result = engine.search(s, white, m_limits);
+            }
+            catch(Exception e)
+            {
+                m_errors.incrementAndGet();
+                return record + " c0 \"search failed: " + e + "\";";
+            }
+            m_nodes.addAndGet(result.nodes);
+            
+            StringBuilder sb = new StringBuilder(record);
+            sb.append(" acd ").append(result.depth).append("; acn ").append(result.nodes).append("; ce ").append(result.score * 10).append(';');
+            if(result.score >= WIN_THRESHOLD)
+                sb.append(" dm ").append((WIN_SCORE - result.score + 1) / 2).append(';');
+            if(result.pv.length > 0)
+            {
+                sb.append(" pv");
+                for(int m : result.pv)
+                    sb.append(' ').append(moveToString(m));
+                sb.append(';');
+            }
+            
+            //check the answer against the best and avoid moves, which are in SAN
+            boolean test = false;
+            boolean solved = true;
+            String operations = fields.length > 4 ? record.split("\\s+", 5)[4] : "";
+            for(String operation : operations.split(";"))
+            {
+                String[] words = operation.trim().split("\\s+");
+                if(words.length < 2 || !(words[0].equals("bm") || words[0].equals("am")))
+                    continue;
+                test = true;
+                boolean listed = false;
+                for(int i = 1; i < words.length; i++)
+                    listed |= s.parseSan(words[i], white) == result.bestMove && result.bestMove != NO_MOVE;
+                if(words[0].equals("am") && listed)
+                    solved = false;
+                if(words[0].equals("bm") && !listed)
+                    solved = false;
+            }
+            if(test)
+            {
+                m_tests.incrementAndGet();
+                if(solved)
+                    m_solved.incrementAndGet();
+            }
+            return sb.toString();
         }
     }
     
-    //alpha beta pruning
-    public static int alphaBeta(ChessState currentState, int depthRemaining, int alpha, int beta, boolean whitePlayer, boolean gameOver) throws Exception
+    /// Runs "epd <input> [depth]", writing the results to -out or standard output
+    static void runEpd(ArrayList<String> positional, Options options, PrintStream out) throws Exception
     {
-        ChessState.ChessMove bestMove = null;
+        SearchLimits limits = new SearchLimits();
+        limits.moveTime = options.moveTime;
+        limits.nodes = options.nodes;
+        if(positional.size() >= 3)
+        {
+            limits.depth = Integer.parseInt(positional.get(2));
+            if(limits.depth < 1 || limits.depth >= MAX_PLY)
+                throw new Exception("depth must be between 1 and " + (MAX_PLY - 1));
+        }
+        else if(limits.moveTime <= 0 && limits.nodes <= 0)
+            limits.depth = EpdBatch.DEFAULT_DEPTH;
+        int workers = options.threadsGiven ? options.threads : Runtime.getRuntime().availableProcessors();
+        if(options.hashFile != null)
+            throw new Exception("each position starts from an empty table, so -hashfile can't be used");
+        options.threads = 1; // each worker's engine searches on the worker's own thread
+        options.stats = false;
+        options.jitter = false; // the same position always gets the same answer
         
-        //check to see if game is over or the desired depth has been reached
-        if(depthRemaining == 0 || gameOver)
+        EpdBatch batch = new EpdBatch(options, workers, limits);
+        long start = System.nanoTime();
+        PrintStream log = (options.out != null) ? out : System.err;
+        try(BufferedReader in = Files.newBufferedReader(Paths.get(positional.get(1)), StandardCharsets.UTF_8);
+            PrintStream results = (options.out != null) ? new PrintStream(new BufferedOutputStream(Files.newOutputStream(Paths.get(options.out))), false, "UTF-8") : null)
         {
-            return currentState.heuristic(new Random());
+            batch.run(in, results != null ? results : out);
         }
+        long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+        log.println(batch.m_positions.get() + " positions on " + workers + " workers in " + millis + " ms, "
+                    + batch.m_nodes.get() * 1000 / millis + " nodes/second"
+                    + (batch.m_errors.get() > 0 ? ", " + batch.m_errors.get() + " could not be read" : ""));
+        if(batch.m_tests.get() > 0)
+            log.println("solved " + batch.m_solved.get() + " of " + batch.m_tests.get()
+                        + String.format(Locale.ROOT, " (%.1f%%)", 100.0 * batch.m_solved.get() / batch.m_tests.get()));
+    }
+    
+    /// Command line arguments, split into positional arguments and options.
+    /// Options are a dash-prefixed name followed by a value, such as "-hash 64".
+    static class Options
+    {
+        ArrayList<String> positional = new ArrayList<String>();
+        int hashMegabytes = 16;
+        int threads = 1;
+        boolean threadsGiven;
+        long seed = System.nanoTime();
+        boolean jitter = true;
+        boolean perftHash;
+        boolean stats = true;
+        boolean quiescence = true;
+        boolean nullMovePruning = true;
+        boolean lateMoveReductions = true;
+        boolean futilityPruning = true;
+        String moves = "";
+        int warmupIterations = 5;
+        int iterations = 5;
+        long moveTime;
+        long clockTime;
+        long increment;
+        long nodes;
+        String book;
+        Tablebases tablebases;
+        int bookPlies = 20;
+        int bookMinGames = 1;
+        String engineA = ""; // match settings for each engine
+        String engineB = "";
+        int openingPlies = 8;
+        int maxPlies = 400;
+        int drawPlies = DEFAULT_DRAW_PLIES;
+        double elo0 = 0;
+        double elo1 = 5;
+        String csv;
+        String json;
+        int queue;           // analysis server: requests that may wait for a worker, 0 for 4 per worker
+        int cacheSize = 10000; // analysis server: results kept
+        String hashFile;     // keep the transposition table in this file
+        String out;          // epd: file for the results
         
-        if(whitePlayer) //max
+        static Options parse(String[] args) throws Exception
         {
-            //white player's turn
-            int bestValue = -100000;
-            
-            //setup iterator to check all valid moves
-            ChessMoveIterator it = currentState.iterator(true);
-            ChessState.ChessMove m;
-            while(it.hasNext())
+            Options options = new Options();
+            for(int i = 0; i < args.length; i++)
             {
-                m = it.next();
-                ChessState temp = new ChessState(currentState);
-                boolean gameOverCheck = temp.move(m.xSource, m.ySource, m.xDest, m.yDest);
-                bestValue = Math.max(bestValue, alphaBeta(temp, depthRemaining - 1, alpha, beta, false, gameOverCheck));
-                
-                if(bestValue > alpha)
-                {
-                    alpha = bestValue;
-                    bestMove = m;
-                }
-                
-                if(beta <= alpha)
+                String arg = args[i];
+                if(arg.length() > 1 && arg.charAt(0) == '-' && !Character.isDigit(arg.charAt(1)))
                 {
-                    break;
+                    if(i + 1 >= args.length)
+                        throw new Exception("missing value for " + arg);
+                    options.set(arg.substring(1), args[++i]);
                 }
+                else
+                    options.positional.add(arg);
             }
-            
-            moveToMake = bestMove;
-            return bestValue;
+            return options;
         }
-        else //min
+        
+        void set(String name, String value) throws Exception
         {
-            //black player's turn
-            int bestValue = 100000;
-            
-            //setup iterator to check all valid moves
-            ChessMoveIterator it = currentState.iterator(false);
-            ChessState.ChessMove m;
-            while(it.hasNext())
+            switch(name)
             {
-                m = it.next();
-                ChessState temp = new ChessState(currentState);
-                boolean gameOverCheck = temp.move(m.xSource, m.ySource, m.xDest, m.yDest);
-                bestValue = Math.min(bestValue, alphaBeta(temp, depthRemaining - 1, alpha, beta, true, gameOverCheck));
-                
-                if(bestValue < beta)
-                {
-                    beta = bestValue;
-                    bestMove = m;
-                }
-                
-                if(beta <= alpha)
-                {
+                case "hash":
+                    hashMegabytes = Integer.parseInt(value);
+                    if(hashMegabytes < 1)
+                        throw new Exception("hash size must be at least 1 MB");
                     break;
-                }
+                case "threads":
+                    threads = Integer.parseInt(value);
+                    threadsGiven = true;
+                    if(threads < 1)
+                        throw new Exception("there must be at least 1 thread");
+                    break;
+                case "seed":
+                    seed = Long.parseLong(value);
+                    break;
+                case "jitter":
+                    jitter = onOff(name, value);
+                    break;
+                case "perfthash":
+                    perftHash = onOff(name, value);
+                    break;
+                case "qsearch":
+                    quiescence = onOff(name, value);
+                    break;
+                case "nullmove":
+                    nullMovePruning = onOff(name, value);
+                    break;
+                case "lmr":
+                    lateMoveReductions = onOff(name, value);
+                    break;
+                case "futility":
+                    futilityPruning = onOff(name, value);
+                    break;
+                case "stats":
+                    stats = onOff(name, value);
+                    break;
+                case "book":
+                    book = value;
+                    break;
+                case "tablebases":
+                    tablebases = new Tablebases(Paths.get(value));
+                    break;
+                case "plies":
+                    bookPlies = Integer.parseInt(value);
+                    if(bookPlies < 1)
+                        throw new Exception("plies must be at least 1");
+                    break;
+                case "mingames":
+                    bookMinGames = Integer.parseInt(value);
+                    break;
+                case "moves":
+                    moves = value;
+                    break;
+                case "a":
+                    engineA = value;
+                    break;
+                case "b":
+                    engineB = value;
+                    break;
+                case "openingplies":
+                    openingPlies = Integer.parseInt(value);
+                    break;
+                case "maxplies":
+                    maxPlies = Integer.parseInt(value);
+                    if(maxPlies < 1)
+                        throw new Exception("maxplies must be at least 1");
+                    break;
+                case "drawplies":
+                    drawPlies = Integer.parseInt(value);
+                    if(drawPlies < 1)
+                        throw new Exception("drawplies must be at least 1");
+                    break;
+                case "elo0":
+                    elo0 = Double.parseDouble(value);
+                    break;
+                case "elo1":
+                    elo1 = Double.parseDouble(value);
+                    break;
+                case "csv":
+                    csv = value;
+                    break;
+                case "json":
+                    json = value;
+                    break;
+                case "queue":
+                    queue = Integer.parseInt(value);
+                    if(queue < 1)
+                        throw new Exception("queue must be at least 1");
+                    break;
+                case "cache":
+                    cacheSize = Integer.parseInt(value);
+                    break;
+                case "out":
+                    out = value;
+                    break;
+                case "hashfile":
+                    hashFile = value;
+                    break;
+                case "warmup":
+                    warmupIterations = Integer.parseInt(value);
+                    break;
+                case "iterations":
+                    iterations = Integer.parseInt(value);
+                    if(iterations < 1)
+                        throw new Exception("there must be at least 1 iteration");
+                    break;
+                case "movetime":
+                    moveTime = Long.parseLong(value);
+                    break;
+                case "clock":
+                    clockTime = Long.parseLong(value);
+                    break;
+                case "inc":
+                    increment = Long.parseLong(value);
+                    break;
+                case "nodes":
+                    nodes = Long.parseLong(value);
+                    break;
+                default:
+                    throw new Exception("unknown option -" + name);
             }
-            
-            moveToMake = bestMove;
-            return bestValue;
+        }
+        
+        static boolean onOff(String name, String value) throws Exception
+        {
+            if(!"on".equals(value) && !"off".equals(value))
+                throw new Exception(name + " must be on or off");
+            return "on".equals(value);
+        }
+        
+        /// Returns the search limits these options describe
+        SearchLimits limits()
+        {
+            SearchLimits limits = new SearchLimits();
+            limits.moveTime = moveTime;
+            limits.whiteTime = clockTime;
+            limits.blackTime = clockTime;
+            limits.whiteIncrement = increment;
+            limits.blackIncrement = increment;
+            limits.nodes = nodes;
+            return limits;
+        }
+        
+        /// Sets the search switches on one thread's context
+        void configure(SearchContext context)
+        {
+            context.m_quiescence = quiescence;
+            context.m_nullMovePruning = nullMovePruning;
+            context.m_lateMoveReductions = lateMoveReductions;
+            context.m_futilityPruning = futilityPruning;
+            context.m_tablebases = tablebases;
+            context.m_drawPlies = drawPlies;
         }
     }
     
@@ -691,13 +6168,127 @@ class ChessState
         int blackDepthCheck = 0;
         Scanner terminalInput = null;
         
+        Options options;
+        try
+        {
+            options = Options.parse(args);
+        }
+        catch(Exception e)
+        {
+            System.out.println("invalid command line arguements: " + e.getMessage());
+            return;
+        }
+        ArrayList<String> positional = options.positional;
+        
+        if(positional.size() >= 1 && "verify".equals(positional.get(0)))
+        {
+            //check that make/unmake round-trips over random games
+            int games = positional.size() >= 2 ? Integer.parseInt(positional.get(1)) : 1000;
+            long seed = positional.size() >= 3 ? Long.parseLong(positional.get(2)) : System.nanoTime();
+            long checked = verifyMakeUnmake(seed, games);
+            System.out.println("make/unmake verified for " + checked + " moves in " + games + " games (seed " + seed + ")");
+            return;
+        }
+        
+        if(positional.size() >= 2 && ("perft".equals(positional.get(0)) || "divide".equals(positional.get(0))))
+        {
+            //count the move tree from the starting position (or from -moves)
+            runPerft(Integer.parseInt(positional.get(1)), "divide".equals(positional.get(0)), options, System.out);
+            return;
+        }
+        
+        if(positional.size() >= 1 && "bench".equals(positional.get(0)))
+        {
+            //fixed-depth search of the benchmark positions
+            bench(positional.size() >= 2 ? Integer.parseInt(positional.get(1)) : 6, options, System.out);
+            return;
+        }
+        
+        if(positional.size() >= 2 && "tablebase".equals(positional.get(0)))
+        {
+            //build the endgame tablebases that aren't in the directory yet
+            int pieces = positional.size() >= 3 ? Integer.parseInt(positional.get(2)) : Tablebases.MAX_PIECES;
+            if(pieces < 3 || pieces > Tablebases.MAX_PIECES)
+                throw new Exception("tablebases can have 3 to " + Tablebases.MAX_PIECES + " pieces");
+            int threads = options.threadsGiven ? options.threads : Runtime.getRuntime().availableProcessors();
+            TablebaseGenerator generator = new TablebaseGenerator(Paths.get(positional.get(1)), threads, System.out);
+            generator.generateAll(pieces);
+            return;
+        }
+        
+        if(positional.size() >= 1 && "book".equals(positional.get(0)))
+        {
+            //build or inspect an opening book
+            runBook(positional, options, System.out);
+            return;
+        }
+        
+        if(positional.size() >= 3 && "match".equals(positional.get(0)))
+        {
+            //play two engine settings against each other
+            runMatch(positional, options, System.out);
+            return;
+        }
+        
+        if(positional.size() >= 1 && "serve".equals(positional.get(0)))
+        {
+            //answer analysis requests from other programs on this machine
+            int port = positional.size() >= 2 ? Integer.parseInt(positional.get(1)) : 8765;
+            int workers = options.threadsGiven ? options.threads : Runtime.getRuntime().availableProcessors();
+            if(options.hashFile != null)
+                throw new Exception("the server's workers each have their own table, so -hashfile can't be used");
+            options.threads = 1; // each worker's engine searches on the worker's own thread
+            options.stats = false;
+            options.jitter = false; // answers don't vary at random from one request to the next
+            AnalysisServer server = new AnalysisServer(options, port, workers, options.queue > 0 ? options.queue : 4 * workers, options.cacheSize);
+            server.warmUp();
+            server.start();
+            System.out.println("listening on http://127.0.0.1:" + server.port() + "/analyze with " + workers + " workers");
+            return;
+        }
+        
+        if(positional.size() >= 2 && "epd".equals(positional.get(0)))
+        {
+            //analyze a file of positions on every processor
+            runEpd(positional, options, System.out);
+            return;
+        }
+        
+        if(positional.size() >= 1 && "uci".equals(positional.get(0)))
+        {
+            //let a chess GUI or tournament manager drive the engine
+            UciEngine engine = new UciEngine(options, System.out);
+            engine.run(new BufferedReader(new InputStreamReader(System.in)));
+            return;
+        }
+        
+        if(positional.size() >= 1 && "microbench".equals(positional.get(0)))
+        {
+            //time and allocation per operation for the engine's hot paths
+            MicroBenchmark bench = new MicroBenchmark(System.out);
+            if(positional.size() >= 2)
+                bench.m_filter = positional.get(1);
+            bench.m_warmupIterations = options.warmupIterations;
+            bench.m_iterations = options.iterations;
+            microBenchmarks(bench);
+            return;
+        }
+        
+        if(positional.size() >= 1 && "smpbench".equals(positional.get(0)))
+        {
+            //time-to-depth for 1, 2, 4 and 8 threads, or up to -threads if that is more
+            int depth = positional.size() >= 2 ? Integer.parseInt(positional.get(1)) : 7;
+            smpBenchmark(depth, Math.max(options.threads, 8), options, System.out);
+            return;
+        }
+        
         //verify that command line arguments are correct
-        if(args.length == 2)
+        if(positional.size() == 2)
         {
             try
             {
-                whiteDepthCheck = Integer.parseInt(args[0]);
-                blackDepthCheck = Integer.parseInt(args[1]);
+                whiteDepthCheck = Integer.parseInt(positional.get(0));
+                blackDepthCheck = Integer.parseInt(positional.get(1));
             }
             catch(Exception e)
             {
@@ -711,8 +6302,46 @@ class ChessState
             return;
         }
         
+        if(whiteDepthCheck < 0 || whiteDepthCheck >= MAX_PLY || blackDepthCheck < 0 || blackDepthCheck >= MAX_PLY)
+        {
+            System.out.println("depth check values must be between 0 and " + (MAX_PLY - 1));
+            return;
+        }
+        
         System.out.println("White depth check is: " + whiteDepthCheck);
         System.out.println("Black depth check is: " + blackDepthCheck);
+        if(options.moveTime > 0)
+            System.out.println("Computer players have " + options.moveTime + " ms per move");
+        if(options.clockTime > 0)
+            System.out.println("Each player's clock starts at " + options.clockTime + " ms plus " + options.increment + " ms per move");
+        if(options.nodes > 0)
+            System.out.println("Computer players search at most " + options.nodes + " nodes per move");
+        if(options.threads > 1)
+            System.out.println("Computer players search with " + options.threads + " threads");
+        if(options.jitter)
+            System.out.println("Random seed is: " + options.seed);
+        
+        if(options.tablebases != null)
+            System.out.println("Computer players use " + options.tablebases.m_count + " endgame tablebases");
+        OpeningBook book = null;
+        if(options.book != null)
+        {
+            book = new OpeningBook(Paths.get(options.book));
+            book.m_random = new Random(options.seed);
+            System.out.println("Computer players use the opening book " + options.book);
+        }
+        
+        //each computer player gets its own engine so that one player never
+        //benefits from the other player's search
+        //with -hashfile each player keeps its own table in its own file
+        String hashFile = options.hashFile;
+        options.hashFile = (hashFile != null) ? hashFile + ".white" : null;
+        SearchEngine whiteEngine = (whiteDepthCheck > 0) ? new SearchEngine(options, "White") : null;
+        options.hashFile = (hashFile != null) ? hashFile + ".black" : null;
+        SearchEngine blackEngine = (blackDepthCheck > 0) ? new SearchEngine(options, "Black") : null;
+        SearchLimits limits = options.limits();
+        if(blackEngine != null)
+            blackEngine.m_search.setJitter(options.jitter, options.seed + 1);
         
         //if either player is human, initalize scanner
         if(whiteDepthCheck == 0 || blackDepthCheck == 0)
@@ -747,11 +6376,21 @@ class ChessState
             else
             {
                 //computer player
-                //white's turn - check all moves
-                alphaBeta(s, whiteDepthCheck, -100000, 100000, true, false);
+                //white's turn - search until the depth or time limit is reached
+                int best = computerMove(s, whiteEngine, book, true, whiteDepthCheck, limits);
+                if(best == NO_MOVE)
+                {
+                    System.out.println("White has no moves");
+                    break;
+                }
+                if(limits.whiteTime < 0)
+                {
+                    System.out.println("White ran out of time. Black won!");
+                    break;
+                }
                 
                 //white makes best move it calculated
-                whiteWon = s.move(moveToMake.xSource, moveToMake.ySource, moveToMake.xDest, moveToMake.yDest);
+                whiteWon = s.move(moveFrom(best) & 7, moveFrom(best) >> 3, moveTo(best) & 7, moveTo(best) >> 3);
             }
             
             //show white's move
@@ -765,7 +6404,13 @@ class ChessState
                 break;
             }
             
-            moveToMake = null;
+            String whiteDraw = s.drawReason(options.drawPlies);
+            if(whiteDraw != null)
+            {
+                System.out.println(whiteDraw.equals("repetition") ? "Draw by threefold repetition"
+                                   : "Draw: " + options.drawPlies + " plies without a capture or pawn move");
+                break;
+            }
             
             if(blackDepthCheck == 0)
             {
@@ -784,11 +6429,21 @@ class ChessState
             }
             else
             {
-                //black's turn - check all moves
-                alphaBeta(s, blackDepthCheck, -100000, 100000, false, false);
+                //black's turn - search until the depth or time limit is reached
+                int best = computerMove(s, blackEngine, book, false, blackDepthCheck, limits);
+                if(best == NO_MOVE)
+                {
+                    System.out.println("Black has no moves");
+                    break;
+                }
+                if(limits.blackTime < 0)
+                {
+                    System.out.println("Black ran out of time. White won!");
+                    break;
+                }
                 
-                //white makes best move it calculated
-                blackWon = s.move(moveToMake.xSource, moveToMake.ySource, moveToMake.xDest, moveToMake.yDest);
+                //black makes best move it calculated
+                blackWon = s.move(moveFrom(best) & 7, moveFrom(best) >> 3, moveTo(best) & 7, moveTo(best) >> 3);
             }
             
             //show black's move
@@ -801,8 +6456,20 @@ class ChessState
                 System.out.println("Black won!");
                 break;
             }
+            
+            String blackDraw = s.drawReason(options.drawPlies);
+            if(blackDraw != null)
+            {
+                System.out.println(blackDraw.equals("repetition") ? "Draw by threefold repetition"
+                                   : "Draw: " + options.drawPlies + " plies without a capture or pawn move");
+                break;
+            }
         }
         
+        if(whiteEngine != null)
+            whiteEngine.close();
+        if(blackEngine != null)
+            blackEngine.close();
         System.out.println("Game over!");
     }
 }
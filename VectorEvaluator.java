@@ -0,0 +1,51 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/*
+ * ChessState.BatchEvaluator on the JDK Vector API. The 8 rows of a position
+ * fill 8 lanes, so one shift and mask per column pulls a nibble out of every
+ * row at once, and a gather looks up the score of all 8 squares in
+ * ChessState.SQUARE_SCORES, where the color is already in the sign. The
+ * vectors are 256 bits (AVX2) even where 512 are available: on Java 17 a
+ * 16-lane gather has crashed the JIT-compiled loop, and 8 lanes keep to one
+ * position per vector.
+ *
+ * The Vector API is an incubator module in Java 17, so this file is kept
+ * apart from ChessState.java, which loads it by name and falls back to the
+ * scalar evaluator without it. To use it, compile and run with the module:
+ *     javac --add-modules jdk.incubator.vector ChessState.java VectorEvaluator.java
+ *     java --add-modules jdk.incubator.vector ChessState microbench batchEvaluate
+ */
+class VectorEvaluator implements ChessState.BatchEvaluator
+{
+    static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_256;
+    
+    /// First square of the row in each lane
+    static final int[] ROW_SQUARES = { 0, 8, 16, 24, 32, 40, 48, 56 };
+    
+    public void evaluate(int[] rows, int count, int[] scores)
+    {
+        int[] indexes = new int[8]; // gather indexes for one column, per call so threads can share the evaluator
+        IntVector rowSquares = IntVector.fromArray(SPECIES, ROW_SQUARES, 0);
+        for(int p = 0; p < count; p++)
+        {
+            IntVector packed = IntVector.fromArray(SPECIES, rows, 8 * p);
+            IntVector sum = IntVector.zero(SPECIES);
+            for(int col = 0; col < 8; col++)
+            {
+                //nibble << 6 | row << 3 | col for every row
+                packed.lanewise(VectorOperators.LSHR, 4 * col).and(ChessState.AllMask)
+                      .lanewise(VectorOperators.LSHL, 6).add(rowSquares).add(col)
+                      .intoArray(indexes, 0);
+                sum = sum.add(IntVector.fromArray(SPECIES, ChessState.SQUARE_SCORES, 0, indexes, 0));
+            }
+            scores[p] = sum.reduceLanes(VectorOperators.ADD);
+        }
+    }
+    
+    public String name()
+    {
+        return "vector" + SPECIES.vectorBitSize();
+    }
+}